@@ -0,0 +1,156 @@
+#!/usr/bin/env python3
+"""Persistent CGI worker for the server's worker pool.
+
+Runs CGI scripts in this process instead of starting an interpreter per request.
+Frames on stdin/stdout, integers big-endian:
+
+  request:  u32 env length, NUL-separated KEY=VALUE pairs, u64 body length, body
+  response: any number of (u32 chunk length > 0, chunk), then u32 0, i32 exit status
+
+Neither side is buffered whole: the script's stdin reads the body off the stream
+while the server is still sending it, and any unread rest is skipped after the
+script. Output goes out in chunks of up to OUTPUT_CHUNK_BYTES as the script
+writes it (or sooner when it flushes), so a slow client holds the script back
+through the pipe instead of growing this process.
+
+An empty environment is a ping. The worker exits when stdin is closed.
+"""
+import io
+import os
+import runpy
+import struct
+import sys
+import traceback
+
+# Keep the protocol stream private: anything a script writes to fd 1 directly
+# ends up on stderr instead of corrupting the frames.
+proto_in = os.fdopen(os.dup(0), "rb", buffering=0)
+proto_out = os.fdopen(os.dup(1), "wb")
+os.dup2(2, 1)
+
+OUTPUT_CHUNK_BYTES = 64 * 1024
+
+BASE_ENV = dict(os.environ)
+BASE_CWD = os.getcwd()
+
+
+def read_exact(n):
+    chunks = []
+    while n > 0:
+        chunk = proto_in.read(n)
+        if not chunk:
+            return None
+        chunks.append(chunk)
+        n -= len(chunk)
+    return b"".join(chunks)
+
+
+class BodyReader(io.RawIOBase):
+    """The request body, read straight from the protocol stream as the server sends it."""
+
+    def __init__(self, length):
+        self.remaining = length
+
+    def readable(self):
+        return True
+
+    def readinto(self, buf):
+        if self.remaining <= 0:
+            return 0
+        chunk = proto_in.read(min(len(buf), self.remaining))
+        if not chunk:
+            raise EOFError("server closed the request body")
+        buf[: len(chunk)] = chunk
+        self.remaining -= len(chunk)
+        return len(chunk)
+
+    def drain(self):
+        while self.remaining > 0:
+            chunk = proto_in.read(min(65536, self.remaining))
+            if not chunk:
+                raise EOFError("server closed the request body")
+            self.remaining -= len(chunk)
+
+
+class OutputWriter(io.RawIOBase):
+    """The script's output, framed as chunks on the protocol stream as it is written."""
+
+    def writable(self):
+        return True
+
+    def write(self, b):
+        n = len(b)
+        if n:
+            proto_out.write(struct.pack(">I", n))
+            proto_out.write(b)
+            proto_out.flush()
+        return n
+
+
+def run_script(env, body):
+    script = env.get("SCRIPT_FILENAME", "")
+    os.environ.clear()
+    os.environ.update(BASE_ENV)
+    os.environ.update(env)
+
+    output = io.BufferedWriter(OutputWriter(), OUTPUT_CHUNK_BYTES)
+    stdout = io.TextIOWrapper(output, encoding="utf-8", newline="\n", write_through=True)
+    stdin = io.TextIOWrapper(io.BufferedReader(body), encoding="utf-8", errors="surrogateescape")
+    saved = sys.stdin, sys.stdout, list(sys.argv), list(sys.path)
+
+    status = 0
+    try:
+        sys.stdin, sys.stdout = stdin, stdout
+        sys.argv = [script]
+        sys.path.insert(0, os.path.dirname(script))
+        os.chdir(os.path.dirname(script))
+        runpy.run_path(script, run_name="__main__")
+    except SystemExit as e:
+        if e.code is None:
+            status = 0
+        elif isinstance(e.code, int):
+            status = e.code
+        else:
+            print(e.code, file=sys.stderr)
+            status = 1
+    except BaseException:
+        traceback.print_exc(file=sys.stderr)
+        status = 1
+    finally:
+        try:
+            stdout.flush()
+        except Exception:
+            pass
+        sys.stdin, sys.stdout, sys.argv, sys.path[:] = saved[0], saved[1], saved[2], saved[3]
+        os.chdir(BASE_CWD)
+    return status
+
+
+def main():
+    while True:
+        head = read_exact(4)
+        if head is None:
+            return
+        (env_len,) = struct.unpack(">I", head)
+        env_blob = read_exact(env_len) if env_len else b""
+        (body_len,) = struct.unpack(">Q", read_exact(8))
+        body = BodyReader(body_len)
+
+        if env_len == 0:
+            status = 0
+        else:
+            env = {}
+            for pair in env_blob.decode("utf-8", "surrogateescape").split("\0"):
+                if "=" in pair:
+                    key, value = pair.split("=", 1)
+                    env[key] = value
+            status = run_script(env, body)
+        # Whatever the script left unread still has to come off the stream
+        body.drain()
+
+        proto_out.write(struct.pack(">Ii", 0, status))
+        proto_out.flush()
+
+
+if __name__ == "__main__":
+    main()
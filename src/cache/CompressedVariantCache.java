@@ -0,0 +1,67 @@
+package cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of compressed static file bodies, keyed by path + mtime + encoding so a
+ * modified file naturally misses and its old variants age out.
+ */
+public class CompressedVariantCache {
+
+    /**
+     * Stored instead of a compressed body that is not smaller than the original, so the
+     * file is served as is without compressing it again. Compare by identity.
+     */
+    public static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final CompressedVariantCache INSTANCE = new CompressedVariantCache(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    public CompressedVariantCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static CompressedVariantCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Identifies one version of a file; the negotiated encoding is appended per variant.
+     */
+    public static String variantKey(String path, long lastModified) {
+        return path + '\0' + lastModified;
+    }
+
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, byte[] compressed) {
+        if (compressed.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, compressed);
+        if (previous != null) {
+            totalBytes -= weight(key, previous);
+        }
+        totalBytes += weight(key, compressed);
+
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            totalBytes -= weight(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+
+    // Keys count too, so empty markers cannot pile up without bound
+    private static long weight(String key, byte[] value) {
+        return key.length() + value.length;
+    }
+}
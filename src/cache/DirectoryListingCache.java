@@ -0,0 +1,179 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import util.Metrics;
+
+/**
+ * Caches directory listings for autoindex so a hit costs one stat of the directory
+ * instead of a readdir plus one stat per entry. A listing is rebuilt when the directory's
+ * mtime changes (entries added, removed or renamed) or after a short max age, which bounds
+ * how stale per-file sizes can get.
+ */
+public class DirectoryListingCache {
+
+    private static final long MAX_AGE_MS = 10_000;
+    private static final long MAX_CACHED_ENTRIES = 500_000;
+    private static final DirectoryListingCache INSTANCE = new DirectoryListingCache();
+
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedEntries;
+
+    private final LongAdder hits = Metrics.counter("dirListing.hits");
+    private final LongAdder misses = Metrics.counter("dirListing.misses");
+
+    public static DirectoryListingCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the listing for {@code dir}, whose current metadata the caller already has.
+     */
+    public Listing get(Path dir, FileMeta dirMeta) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Listing cached = listings.get(dir);
+            if (cached != null && cached.dirModified == dirMeta.getLastModified() && now - cached.builtAt < MAX_AGE_MS) {
+                hits.increment();
+                return cached;
+            }
+        }
+
+        misses.increment();
+        Listing fresh = read(dir, dirMeta.getLastModified(), now);
+        put(dir, fresh);
+        return fresh;
+    }
+
+    private synchronized void put(Path dir, Listing listing) {
+        Listing previous = listings.put(dir, listing);
+        if (previous != null) {
+            cachedEntries -= previous.size();
+        }
+        cachedEntries += listing.size();
+
+        Iterator<Listing> it = listings.values().iterator();
+        while (cachedEntries > MAX_CACHED_ENTRIES && it.hasNext()) {
+            Listing eldest = it.next();
+            if (eldest == listing) continue;
+            cachedEntries -= eldest.size();
+            it.remove();
+        }
+    }
+
+    private static Listing read(Path dir, long dirModified, long now) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    entries.add(new Entry(child.getFileName().toString(), attrs.isDirectory(),
+                            attrs.size(), attrs.lastModifiedTime().toMillis()));
+                } catch (IOException ignored) {
+                    // Removed between readdir and stat
+                }
+            }
+        }
+        return new Listing(entries.toArray(new Entry[0]), dirModified, now);
+    }
+
+    public enum SortKey {
+        NAME(Comparator.comparing(e -> e.name)),
+        SIZE(Comparator.comparingLong(e -> e.size)),
+        MTIME(Comparator.comparingLong(e -> e.lastModified));
+
+        private final Comparator<Entry> comparator;
+
+        SortKey(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+
+        public static SortKey parse(String value) {
+            if (value == null) return NAME;
+            return switch (value.toLowerCase()) {
+                case "size" -> SIZE;
+                case "mtime", "date", "modified" -> MTIME;
+                default -> NAME;
+            };
+        }
+    }
+
+    public static final class Listing {
+        private final Entry[] byName;
+        private final long dirModified;
+        private final long builtAt;
+        private final Map<String, Entry[]> sorted = new ConcurrentHashMap<>();
+
+        private Listing(Entry[] entries, long dirModified, long builtAt) {
+            this.byName = entries;
+            this.dirModified = dirModified;
+            this.builtAt = builtAt;
+            Arrays.sort(byName, SortKey.NAME.comparator);
+        }
+
+        public int size() {
+            return byName.length;
+        }
+
+        public long getDirModified() {
+            return dirModified;
+        }
+
+        /**
+         * Entries in the requested order; each ordering is computed once per listing.
+         */
+        public Entry[] sorted(SortKey key, boolean descending) {
+            if (key == SortKey.NAME && !descending) {
+                return byName;
+            }
+            return sorted.computeIfAbsent(key + (descending ? ":desc" : ":asc"), k -> {
+                Entry[] copy = byName.clone();
+                Comparator<Entry> cmp = key.comparator.thenComparing(SortKey.NAME.comparator);
+                Arrays.sort(copy, descending ? cmp.reversed() : cmp);
+                return copy;
+            });
+        }
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(String name, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
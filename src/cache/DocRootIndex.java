@@ -0,0 +1,366 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import util.Metrics;
+import util.MimeTypes;
+import util.SonicLogger;
+
+/**
+ * Startup snapshot of every file under the configured document roots, so static lookups
+ * resolve from memory without touching the filesystem.
+ *
+ * The walk runs in parallel on the common fork/join pool and produces an immutable map
+ * keyed by the same normalized paths StaticHandler builds ({@code root + request path}).
+ * A daemon WatchService thread records later changes in a small overlay map that is
+ * consulted first; deletions are stored there as {@link FileMeta#MISSING}. Once the
+ * overlay grows past {@link #COMPACT_THRESHOLD} entries it is folded into a new base map.
+ */
+public class DocRootIndex {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(DocRootIndex.class);
+
+    // Rough per-entry cost of a HashMap node, Path and FileMeta, excluding path characters
+    private static final int ENTRY_OVERHEAD_BYTES = 240;
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private static volatile DocRootIndex active;
+
+    private final List<Path> roots;
+    // Replaced, never modified, when the overlay is compacted
+    private volatile Map<Path, FileMeta> base;
+    private final ConcurrentHashMap<Path, FileMeta> overlay = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+    private WatchService watchService;
+
+    private DocRootIndex(List<Path> roots, Map<Path, FileMeta> base) {
+        this.roots = roots;
+        this.base = base;
+    }
+
+    /**
+     * Returns the index built at startup, or null when the mode is disabled.
+     */
+    public static DocRootIndex getActive() {
+        return active;
+    }
+
+    /**
+     * Walks all roots in parallel, installs the result as the active index and starts the
+     * background updater.
+     */
+    public static DocRootIndex build(Collection<String> rootDirs) {
+        long start = System.nanoTime();
+        List<Path> roots = distinctRoots(rootDirs);
+
+        ConcurrentHashMap<Path, FileMeta> collected = new ConcurrentHashMap<>();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        List<WalkTask> tasks = new ArrayList<>();
+        for (Path root : roots) {
+            WalkTask task = new WalkTask(root, collected, visited);
+            tasks.add(task);
+            pool.execute(task);
+        }
+        for (WalkTask task : tasks) {
+            task.join();
+        }
+
+        DocRootIndex index = new DocRootIndex(roots, Map.copyOf(collected));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        logger.success("Indexed " + index.base.size() + " paths under " + roots.size() + " root(s) in "
+                + elapsedMs + "ms (~" + index.estimateMemoryBytes() / 1024 + " KB)");
+
+        index.startWatcher();
+        Metrics.gauge("docRootIndex.entries", index::size);
+        Metrics.gauge("docRootIndex.overlay", index.overlay::size);
+        active = index;
+        return index;
+    }
+
+    public boolean covers(Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks a path up without filesystem access. Paths not in the index are reported as
+     * missing; callers should check {@link #covers(Path)} first.
+     */
+    public FileMeta get(Path path) {
+        FileMeta changed = overlay.get(path);
+        if (changed != null) {
+            return changed;
+        }
+        return base.getOrDefault(path, FileMeta.MISSING);
+    }
+
+    public int size() {
+        return base.size();
+    }
+
+    public long estimateMemoryBytes() {
+        long bytes = 0;
+        for (Path path : base.keySet()) {
+            bytes += ENTRY_OVERHEAD_BYTES + path.toString().length();
+        }
+        return bytes;
+    }
+
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // =========================
+    // Background updates
+    // =========================
+
+    private void startWatcher() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (Map.Entry<Path, FileMeta> entry : base.entrySet()) {
+                if (entry.getValue().isDirectory()) {
+                    watch(entry.getKey());
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Doc root watcher disabled, index will not track changes", e);
+            return;
+        }
+
+        Thread updater = new Thread(this::watchLoop, "docroot-index-watcher");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    private void watch(Path dir) {
+        try {
+            WatchKey key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchKeys.put(key, dir);
+            watchedDirs.add(dir);
+        } catch (IOException e) {
+            logger.warn("Cannot watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = watchKeys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (dir == null) break;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    refreshTree(dir);
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                // A directory moved in or out takes everything below it along
+                if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed))
+                        || (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && get(changed).isDirectory())) {
+                    refreshTree(changed);
+                } else {
+                    overlay.put(changed, readMeta(changed));
+                }
+            }
+
+            if (dir != null) {
+                // Entry changes also move the directory's own mtime
+                overlay.put(dir, readMeta(dir));
+            }
+            if (!key.reset()) {
+                Path gone = watchKeys.remove(key);
+                if (gone != null) {
+                    watchedDirs.remove(gone);
+                }
+            }
+            if (overlay.size() >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Re-reads a directory subtree into the overlay and watches any new directories in it.
+     * Indexed paths below {@code dir} that the walk no longer finds are marked missing,
+     * which also covers a directory that was deleted or moved away as a whole.
+     */
+    private void refreshTree(Path dir) {
+        ConcurrentHashMap<Path, FileMeta> fresh = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new WalkTask(dir, fresh, ConcurrentHashMap.newKeySet()));
+        markVanished(dir, base.keySet(), fresh);
+        markVanished(dir, overlay.keySet(), fresh);
+        overlay.putAll(fresh);
+        for (Map.Entry<Path, FileMeta> entry : fresh.entrySet()) {
+            if (entry.getValue().isDirectory() && !watchedDirs.contains(entry.getKey())) {
+                watch(entry.getKey());
+            }
+        }
+    }
+
+    private void markVanished(Path dir, Set<Path> indexed, Map<Path, FileMeta> fresh) {
+        for (Path path : indexed) {
+            if (path.startsWith(dir) && !fresh.containsKey(path)) {
+                overlay.put(path, FileMeta.MISSING);
+            }
+        }
+    }
+
+    /**
+     * Folds the overlay into a new base map. Only the watcher thread writes the overlay,
+     * so entries are removed after the new base is published and lookups never miss.
+     */
+    private void compact() {
+        Map<Path, FileMeta> folded = new HashMap<>(overlay);
+        Map<Path, FileMeta> merged = new HashMap<>(base);
+        for (Map.Entry<Path, FileMeta> entry : folded.entrySet()) {
+            if (entry.getValue() == FileMeta.MISSING) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        base = Map.copyOf(merged);
+        for (Map.Entry<Path, FileMeta> entry : folded.entrySet()) {
+            overlay.remove(entry.getKey(), entry.getValue());
+        }
+        logger.debug("Compacted " + folded.size() + " index changes, " + base.size() + " paths indexed");
+    }
+
+    // =========================
+    // Walking
+    // =========================
+
+    private static List<Path> distinctRoots(Collection<String> rootDirs) {
+        Set<Path> normalized = new LinkedHashSet<>();
+        for (String root : rootDirs) {
+            if (root != null && !root.isEmpty()) {
+                normalized.add(Paths.get(root).normalize());
+            }
+        }
+
+        // Nested roots are already covered by their parent's walk
+        List<Path> roots = new ArrayList<>();
+        for (Path candidate : normalized) {
+            boolean nested = false;
+            for (Path other : normalized) {
+                if (!other.equals(candidate) && candidate.startsWith(other)) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested) {
+                roots.add(candidate);
+            }
+        }
+        return roots;
+    }
+
+    private static FileMeta readMeta(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return toMeta(path, attrs);
+        } catch (IOException e) {
+            return FileMeta.MISSING;
+        }
+    }
+
+    private static FileMeta toMeta(Path path, BasicFileAttributes attrs) {
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (attrs.isDirectory()) {
+            return new FileMeta(true, true, size, mtime);
+        }
+        Path name = path.getFileName();
+        return new FileMeta(true, false, size, mtime,
+                MimeTypes.getMimeType(name != null ? name.toString() : null), FileMeta.etagFor(size, mtime));
+    }
+
+    private static final class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final ConcurrentHashMap<Path, FileMeta> out;
+        // File keys of directories already walked, so symlink cycles terminate
+        private final Set<Object> visited;
+
+        private WalkTask(Path dir, ConcurrentHashMap<Path, FileMeta> out, Set<Object> visited) {
+            this.dir = dir;
+            this.out = out;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            BasicFileAttributes self;
+            try {
+                self = Files.readAttributes(dir, BasicFileAttributes.class);
+            } catch (IOException e) {
+                out.put(dir, FileMeta.MISSING);
+                return;
+            }
+            out.put(dir, toMeta(dir, self));
+            if (!self.isDirectory() || (self.fileKey() != null && !visited.add(self.fileKey()))) {
+                return;
+            }
+
+            List<WalkTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        subdirs.add(new WalkTask(child, out, visited));
+                    } else {
+                        out.put(child, toMeta(child, attrs));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot list " + dir + ": " + e.getMessage());
+            }
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cache;
+
+/**
+ * Immutable result of a single stat call: existence, type, size and modification time.
+ * Entries built by {@link DocRootIndex} also carry a precomputed MIME type and ETag.
+ */
+public final class FileMeta {
+
+    public static final FileMeta MISSING = new FileMeta(false, false, 0, 0);
+
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final String mimeType;
+    private final String etag;
+
+    public FileMeta(boolean exists, boolean directory, long size, long lastModified) {
+        this(exists, directory, size, lastModified, null, null);
+    }
+
+    public FileMeta(boolean exists, boolean directory, long size, long lastModified, String mimeType, String etag) {
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.mimeType = mimeType;
+        this.etag = etag;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isFile() {
+        return exists && !directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Precomputed MIME type, or null if the caller should derive it from the file name.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getEtag() {
+        return etag != null ? etag : etagFor(size, lastModified);
+    }
+
+    /**
+     * Builds an nginx-style validator from size and mtime: {@code "mtime-size"} in hex.
+     */
+    public static String etagFor(long size, long lastModified) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return "FileMeta{exists=" + exists + ", directory=" + directory
+                + ", size=" + size + ", lastModified=" + lastModified + "}";
+    }
+}
@@ -0,0 +1,214 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import util.Metrics;
+
+/**
+ * Bounded, short-TTL cache of file attributes, open read channels and read-only mappings
+ * (the equivalent of nginx's open_file_cache). Missing paths are cached too, so 404 probes
+ * cost one stat per TTL window. An expired entry is revalidated with a fresh stat; its channel is kept only
+ * if size and mtime are unchanged, and channels are closed when their entry is evicted.
+ */
+public class FileMetadataCache {
+
+    private static final long DEFAULT_TTL_MS = 2_000;
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final FileMetadataCache INSTANCE = new FileMetadataCache(DEFAULT_TTL_MS, DEFAULT_MAX_ENTRIES);
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = Metrics.counter("fileCache.hits");
+    private final LongAdder misses = Metrics.counter("fileCache.misses");
+    private final LongAdder evictions = Metrics.counter("fileCache.evictions");
+    private final AtomicInteger openChannels = new AtomicInteger();
+
+    public FileMetadataCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        Metrics.gauge("fileCache.entries", entries::size);
+        Metrics.gauge("fileCache.openChannels", openChannels::get);
+        Metrics.gauge("fileCache.hitRatio", () -> String.format("%.3f", getHitRatio()));
+    }
+
+    public static FileMetadataCache getInstance() {
+        return INSTANCE;
+    }
+
+    public FileMeta stat(Path path) {
+        return lookup(path).meta;
+    }
+
+    /**
+     * Returns an open read channel for a regular file, reusing the cached descriptor while
+     * the file is unchanged. Returns null if the path is missing or a directory.
+     * Callers must not close the channel; use positional reads since it is shared.
+     */
+    public FileChannel open(Path path) throws IOException {
+        Entry entry = lookup(path);
+        if (!entry.meta.isFile()) {
+            return null;
+        }
+
+        synchronized (entry) {
+            if (entry.released) {
+                // Evicted or replaced concurrently; retry against the current entry
+                return open(path);
+            }
+            if (entry.channel == null || !entry.channel.isOpen()) {
+                entry.channel = FileChannel.open(path, StandardOpenOption.READ);
+                openChannels.incrementAndGet();
+            }
+            return entry.channel;
+        }
+    }
+
+    /**
+     * Returns a read-only mapping of a regular file, created once per file version and
+     * shared by all responses (callers get an independent duplicate). Returns null if the
+     * path is missing or a directory.
+     */
+    public ByteBuffer map(Path path) throws IOException {
+        Entry entry = lookup(path);
+        if (!entry.meta.isFile()) {
+            return null;
+        }
+
+        synchronized (entry) {
+            if (entry.released) {
+                return map(path);
+            }
+            if (entry.mapped == null) {
+                if (entry.channel == null || !entry.channel.isOpen()) {
+                    entry.channel = FileChannel.open(path, StandardOpenOption.READ);
+                    openChannels.incrementAndGet();
+                }
+                entry.mapped = entry.channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.meta.getSize());
+            }
+            return entry.mapped.duplicate();
+        }
+    }
+
+    public void invalidate(Path path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            removed.closeChannel();
+        }
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private Entry lookup(Path path) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(path);
+        if (entry != null && now < entry.expiresAt) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        FileMeta meta = readMeta(path);
+
+        if (entry != null && sameFile(entry.meta, meta)) {
+            entry.expiresAt = now + ttlMs;
+            return entry;
+        }
+
+        Entry fresh = new Entry(meta, now + ttlMs);
+        Entry previous = entries.put(path, fresh);
+        if (previous != null) {
+            previous.closeChannel();
+        }
+        if (entries.size() > maxEntries) {
+            evict(now);
+        }
+        return fresh;
+    }
+
+    /**
+     * Drops expired entries first, then arbitrary ones, until the cache is back to 90%
+     * of its capacity so eviction is not paid on every insert.
+     */
+    private void evict(long now) {
+        int target = maxEntries - maxEntries / 10;
+
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && entries.size() > target) {
+            Entry entry = it.next().getValue();
+            if (now >= entry.expiresAt) {
+                it.remove();
+                entry.closeChannel();
+                evictions.increment();
+            }
+        }
+
+        it = entries.entrySet().iterator();
+        while (it.hasNext() && entries.size() > target) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            entry.closeChannel();
+            evictions.increment();
+        }
+    }
+
+    private static boolean sameFile(FileMeta a, FileMeta b) {
+        return a.exists() == b.exists()
+                && a.isDirectory() == b.isDirectory()
+                && a.getSize() == b.getSize()
+                && a.getLastModified() == b.getLastModified();
+    }
+
+    private static FileMeta readMeta(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileMeta(true, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return FileMeta.MISSING;
+        }
+    }
+
+    private final class Entry {
+        private final FileMeta meta;
+        private volatile long expiresAt;
+        private FileChannel channel;
+        private MappedByteBuffer mapped;
+        private boolean released;
+
+        private Entry(FileMeta meta, long expiresAt) {
+            this.meta = meta;
+            this.expiresAt = expiresAt;
+        }
+
+        private synchronized void closeChannel() {
+            released = true;
+            // In-flight responses keep their duplicates; the mapping is unmapped once collected
+            mapped = null;
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            openChannels.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package cache;
+
+import config.model.WebServerConfig.ServerBlock;
+import http.ResponseCompressor;
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import routing.model.Route;
+import session.CookieUtil;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Single-flight for identical concurrent GETs: while a response for a key is being produced
+ * off the event loop, further requests for the same key wait for it instead of starting
+ * their own script. Keys cover the server block, route, path, normalized query and the
+ * encodings the client accepts.
+ *
+ * A finished response goes to the first waiter still connected; the others get copies
+ * that share its body buffer. Streamed bodies, responses that set cookies and responses
+ * that vary on more than Accept-Encoding cannot be shared, so those waiters run the
+ * handler themselves. The work is cancelled only once
+ * every waiter has gone.
+ */
+public class RequestCoalescer {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(RequestCoalescer.class);
+    private static final RequestCoalescer INSTANCE = new RequestCoalescer();
+
+    private static final List<String> ON_THE_FLY = Arrays.asList(ResponseCompressor.GZIP, ResponseCompressor.DEFLATE);
+
+    private static final LongAdder LEADERS = Metrics.counter("coalescer.leaders");
+    private static final LongAdder FOLLOWERS = Metrics.counter("coalescer.followers");
+    private static final LongAdder RERUNS = Metrics.counter("coalescer.reruns");
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private RequestCoalescer() {
+        Metrics.gauge("coalescer.inFlight", flights::size);
+        Metrics.gauge("coalescer.ratio", () -> {
+            long followers = FOLLOWERS.sum();
+            long total = LEADERS.sum() + followers;
+            return String.format("%.2f", total == 0 ? 0.0 : (double) followers / total);
+        });
+    }
+
+    public static RequestCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Joins the in-flight response for an identical request, or runs {@code loader} and
+     * lets later identical requests join it while it is deferred. The loader may also run
+     * on the thread that finishes another request, so it must not depend on connection
+     * state.
+     */
+    public HttpResponse serve(HttpRequest request, ServerBlock server, Route route, Supplier<HttpResponse> loader) {
+        if (!isCoalescable(request, route)) {
+            return loader.get();
+        }
+
+        String key = key(request, server, route);
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                CompletableFuture<HttpResponse> joined = flight.join(loader);
+                if (joined != null) {
+                    FOLLOWERS.increment();
+                    return HttpResponse.deferred(joined);
+                }
+                // Finished or abandoned in the meantime
+                flights.remove(key, flight);
+                continue;
+            }
+            flight = new Flight(key);
+            if (flights.putIfAbsent(key, flight) == null) {
+                LEADERS.increment();
+                return flight.lead(loader);
+            }
+        }
+    }
+
+    /**
+     * Only plain GETs that carry nothing identifying the client are coalesced, on routes
+     * whose responses are produced off the event loop and that allow it (by default only
+     * CGI routes, see {@link Route#isCoalesce()}). Static files are answered on the
+     * loop from cached channels, so two of them are never in flight at once. The server's
+     * session cookie alone does not identify a client here: every browser sends it, so a
+     * route that answers per session should turn coalescing off.
+     */
+    private static boolean isCoalescable(HttpRequest request, Route route) {
+        return route.isCoalesce()
+                && (route.isCgiEnabled() || route.isHandlerMounted() || route.isProxy())
+                && !route.isRedirect()
+                && "GET".equals(request.getMethod())
+                && request.getHeader("Authorization") == null
+                && !CookieUtil.hasClientCookies(request)
+                && request.getHeader("Range") == null
+                && request.getHeader("If-None-Match") == null
+                && request.getHeader("If-Modified-Since") == null;
+    }
+
+    private static String key(HttpRequest request, ServerBlock server, Route route) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(server != null ? server.getName() : "").append('\0')
+                .append(route.getPath()).append('\0')
+                .append(request.getPath()).append('\0')
+                .append(ResponseCache.normalizeQuery(request.getQueryString())).append('\0');
+
+        if (route.isCompressionEnabled()) {
+            key.append(String.join(",", ResponseCompressor.acceptable(request.getHeader("Accept-Encoding"), ON_THE_FLY)));
+        }
+        return key.toString();
+    }
+
+    /**
+     * A response can be handed to every waiter only if it is buffered, sets no cookies and
+     * varies on nothing but Accept-Encoding, which the key already covers.
+     */
+    private static boolean isShareable(HttpResponse response) {
+        if (response.isStreaming() || !response.getSetCookies().isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if ("Set-Cookie".equalsIgnoreCase(name)) {
+                return false;
+            }
+            if ("Vary".equalsIgnoreCase(name) && !variesOnEncodingOnly(header.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean variesOnEncodingOnly(String vary) {
+        for (String field : vary.split(",")) {
+            String name = field.trim();
+            if (!name.isEmpty() && !name.equalsIgnoreCase("Accept-Encoding")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(HttpResponse response) {
+        try {
+            response.getStreamBody().close();
+        } catch (IOException e) {
+            logger.warn("Cannot close unclaimed response body: " + e.getMessage());
+        }
+    }
+
+    private final class Flight {
+        private final String key;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private CompletableFuture<HttpResponse> work;
+        private boolean settled;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        HttpResponse lead(Supplier<HttpResponse> loader) {
+            Waiter leader = new Waiter(loader);
+            synchronized (this) {
+                waiters.add(leader);
+            }
+            HttpResponse response;
+            try {
+                response = loader.get();
+            } catch (RuntimeException e) {
+                settle(null, e);
+                throw e;
+            }
+            if (!response.isDeferred()) {
+                // Answered on the spot; anyone who joined meanwhile gets a copy
+                settle(response, null);
+                return leader.future.join();
+            }
+
+            CompletableFuture<HttpResponse> deferred = response.getDeferred();
+            boolean abandoned;
+            synchronized (this) {
+                work = deferred;
+                abandoned = waiters.isEmpty();
+            }
+            if (abandoned) {
+                deferred.cancel(true);
+            }
+            deferred.whenComplete(this::settle);
+            return HttpResponse.deferred(leader.future);
+        }
+
+        /**
+         * Adds a waiter, or returns null if the flight already finished or was abandoned.
+         */
+        CompletableFuture<HttpResponse> join(Supplier<HttpResponse> loader) {
+            Waiter waiter = new Waiter(loader);
+            synchronized (this) {
+                if (settled || waiters.isEmpty()) {
+                    return null;
+                }
+                waiters.add(waiter);
+            }
+            return waiter.future;
+        }
+
+        private void leave(Waiter waiter) {
+            CompletableFuture<HttpResponse> abandoned = null;
+            synchronized (this) {
+                if (settled || !waiters.remove(waiter) || !waiters.isEmpty()) {
+                    return;
+                }
+                abandoned = work;
+            }
+            flights.remove(key, this);
+            if (abandoned != null) {
+                abandoned.cancel(true);
+            }
+        }
+
+        private void settle(HttpResponse response, Throwable error) {
+            List<Waiter> waiting;
+            synchronized (this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+                waiting = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            flights.remove(key, this);
+
+            if (error != null || response == null) {
+                for (Waiter waiter : waiting) {
+                    waiter.future.completeExceptionally(error);
+                }
+                return;
+            }
+
+            // Snapshot before anyone gets the original, since its writer moves the buffer
+            // position and may add headers
+            boolean shareable = isShareable(response);
+            ByteBuffer body = shareable ? response.getBodyBuffer().duplicate() : null;
+            Map<String, String> headers = shareable ? new HashMap<>(response.getHeaders()) : null;
+
+            boolean claimed = false;
+            for (Waiter waiter : waiting) {
+                if (waiter.future.isDone()) {
+                    continue;
+                }
+                if (!claimed) {
+                    claimed = true;
+                    waiter.future.complete(response);
+                } else if (shareable) {
+                    waiter.future.complete(copy(response, headers, body));
+                } else {
+                    RERUNS.increment();
+                    waiter.rerun();
+                }
+            }
+            if (!claimed && response.isStreaming()) {
+                // Nobody reads this body; release its producer
+                closeQuietly(response);
+            }
+        }
+
+        private HttpResponse copy(HttpResponse response, Map<String, String> headers, ByteBuffer body) {
+            HttpResponse copy = new HttpResponse();
+            copy.setStatusCode(response.getStatusCode());
+            copy.setStatusMessage(response.getStatusMessage());
+            copy.setHeaders(new HashMap<>(headers));
+            copy.setBody(body.duplicate());
+            return copy;
+        }
+
+        private final class Waiter {
+            private final Supplier<HttpResponse> loader;
+            private final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+            Waiter(Supplier<HttpResponse> loader) {
+                this.loader = loader;
+                future.whenComplete((response, e) -> {
+                    if (future.isCancelled()) {
+                        leave(this);
+                    }
+                });
+            }
+
+            /**
+             * Produces this waiter's own response when the shared one cannot be handed out twice.
+             */
+            void rerun() {
+                HttpResponse response;
+                try {
+                    response = loader.get();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+                if (!response.isDeferred()) {
+                    future.complete(response);
+                    return;
+                }
+                CompletableFuture<HttpResponse> deferred = response.getDeferred();
+                deferred.whenComplete((result, e) -> {
+                    if (e != null) {
+                        future.completeExceptionally(e);
+                    } else if (!future.complete(result) && result.isStreaming()) {
+                        closeQuietly(result);
+                    }
+                });
+                future.whenComplete((result, e) -> {
+                    if (future.isCancelled()) {
+                        deferred.cancel(true);
+                    }
+                });
+            }
+        }
+    }
+}
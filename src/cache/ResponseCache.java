@@ -0,0 +1,346 @@
+package cache;
+
+import config.model.WebServerConfig.ServerBlock;
+import http.ResponseCompressor;
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import routing.model.CachePolicy;
+import routing.model.Route;
+import session.CookieUtil;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Short-lived cache of complete GET responses for routes with a {@code cache} policy, so a
+ * burst of identical requests runs the handler (a CGI fork, a proxied call) once. Streamed
+ * bodies, such as directory listings and large files, and mapped files are never stored.
+ *
+ * Entries are keyed by server block, path, query with its parameters sorted, and the
+ * encodings the client accepts among those the route can produce. On CGI, handler and
+ * proxy routes, requests with cookies other than the server's session cookie are not
+ * cached unless the route opts in with {@code varyByCookie}, which adds the Cookie header
+ * to the key so one client's output is never served to another. Within the TTL an entry
+ * is served as is; for {@code staleWhileRevalidateMs} after that it is still served while
+ * a single background refresh replaces it.
+ */
+public class ResponseCache {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(ResponseCache.class);
+    private static final ResponseCache INSTANCE = new ResponseCache();
+
+    private static final List<String> ON_THE_FLY = Arrays.asList(ResponseCompressor.GZIP, ResponseCompressor.DEFLATE);
+
+    // Rough per-entry cost of the key and headers, so many tiny entries still count
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private static final LongAdder HITS = Metrics.counter("responseCache.hits");
+    private static final LongAdder STALE_HITS = Metrics.counter("responseCache.staleHits");
+    private static final LongAdder MISSES = Metrics.counter("responseCache.misses");
+    private static final LongAdder REFRESHES = Metrics.counter("responseCache.refreshes");
+
+    // Routes do not override equals, so each configured route gets its own store
+    private final Map<Route, Store> stores = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "response-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ResponseCache() {
+        Metrics.gauge("responseCache.bytes", () -> {
+            long total = 0;
+            for (Store store : stores.values()) {
+                total += store.totalBytes();
+            }
+            return total;
+        });
+    }
+
+    public static ResponseCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a cached response for the request, or runs {@code loader} and stores its
+     * result when it is cacheable. The loader may also run later on the refresh thread,
+     * so it must not depend on connection state.
+     */
+    public HttpResponse serve(HttpRequest request, ServerBlock server, Route route, Supplier<HttpResponse> loader) {
+        CachePolicy policy = route.getCache();
+        if (!isCacheable(request, route, policy)) {
+            return loader.get();
+        }
+
+        Store store = stores.computeIfAbsent(route, Store::new);
+        String key = key(request, server, policy, store);
+        long now = System.currentTimeMillis();
+
+        Entry entry = store.get(key);
+        if (entry != null) {
+            long age = now - entry.storedAt;
+            if (age < policy.getTtlMs()) {
+                HITS.increment();
+                return entry.toResponse(age);
+            }
+            if (age < policy.getTtlMs() + policy.getStaleWhileRevalidateMs()) {
+                STALE_HITS.increment();
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    refresh(store, key, entry, loader);
+                }
+                return entry.toResponse(age);
+            }
+        }
+
+        MISSES.increment();
+        return loader.get().whenReady(response -> {
+            Entry fresh = Entry.of(response, now);
+            if (fresh != null) {
+                store.put(key, fresh);
+            }
+        });
+    }
+
+    private void refresh(Store store, String key, Entry stale, Supplier<HttpResponse> loader) {
+        refresher.execute(() -> {
+            try {
+                REFRESHES.increment();
+                HttpResponse response = loader.get();
+                if (response.isDeferred()) {
+                    // Refreshes are rare and already off the event loop, so just wait
+                    response = response.getDeferred().join();
+                }
+                Entry fresh = Entry.of(response, System.currentTimeMillis());
+                if (fresh != null) {
+                    store.put(key, fresh);
+                } else if (response.isStreaming()) {
+                    // Nobody reads this body; release its producer
+                    closeQuietly(response);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Background refresh failed for " + key.replace('\0', ' ') + ": " + e.getMessage());
+            } finally {
+                // A failed refresh leaves the stale entry for the next request to retry
+                stale.refreshing.set(false);
+            }
+        });
+    }
+
+    private static void closeQuietly(HttpResponse response) {
+        try {
+            response.getStreamBody().close();
+        } catch (IOException e) {
+            logger.warn("Cannot close refreshed response body: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Only plain GETs are cached. Conditional and range requests go to the handler so
+     * validators and partial responses are answered exactly. CGI scripts, handlers and
+     * upstreams may answer per client (scripts see HTTP_COOKIE), so on those routes
+     * cookies keep a request out unless the route keys on them. The session cookie alone
+     * does not: every browser sends it, and routes that answer per session must opt in.
+     */
+    private static boolean isCacheable(HttpRequest request, Route route, CachePolicy policy) {
+        return "GET".equals(request.getMethod())
+                && request.getHeader("Authorization") == null
+                && (policy.isVaryByCookie() || !mayDependOnCookies(request, route))
+                && request.getHeader("Range") == null
+                && request.getHeader("If-None-Match") == null
+                && request.getHeader("If-Modified-Since") == null;
+    }
+
+    private static boolean mayDependOnCookies(HttpRequest request, Route route) {
+        return (route.isCgiEnabled() || route.isHandlerMounted() || route.isProxy())
+                && CookieUtil.hasClientCookies(request);
+    }
+
+    private static String key(HttpRequest request, ServerBlock server, CachePolicy policy, Store store) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(server != null ? server.getName() : "").append('\0')
+                .append(request.getPath()).append('\0')
+                .append(normalizeQuery(request.getQueryString())).append('\0');
+
+        if (!store.encodings.isEmpty()) {
+            List<String> accepted = ResponseCompressor.acceptable(request.getHeader("Accept-Encoding"), store.encodings);
+            key.append(String.join(",", accepted));
+        }
+        if (policy.isVaryByCookie()) {
+            String cookie = request.getHeader("Cookie");
+            key.append('\0').append(cookie != null ? cookie : "");
+        }
+        return key.toString();
+    }
+
+    /**
+     * Drops empty parameters and sorts the rest by name. The sort is stable, so repeated
+     * names keep their relative order.
+     */
+    static String normalizeQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        String[] params = query.split("&");
+        if (params.length == 1) {
+            return query;
+        }
+        Arrays.sort(params, Comparator.comparing(ResponseCache::paramName));
+
+        StringBuilder sb = new StringBuilder(query.length());
+        for (String param : params) {
+            if (param.isEmpty()) continue;
+            if (sb.length() > 0) sb.append('&');
+            sb.append(param);
+        }
+        return sb.toString();
+    }
+
+    private static String paramName(String param) {
+        int eq = param.indexOf('=');
+        return eq >= 0 ? param.substring(0, eq) : param;
+    }
+
+    private static final class Entry {
+        private final int statusCode;
+        private final String statusMessage;
+        private final Map<String, String> headers;
+        private final ByteBuffer body;
+        private final long storedAt;
+        private final long size;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(HttpResponse response, long storedAt) {
+            this.statusCode = response.getStatusCode();
+            this.statusMessage = response.getStatusMessage();
+            this.headers = Collections.unmodifiableMap(new HashMap<>(response.getHeaders()));
+            this.body = response.getBodyBuffer().asReadOnlyBuffer();
+            this.storedAt = storedAt;
+            this.size = body.remaining() + ENTRY_OVERHEAD_BYTES;
+        }
+
+        /**
+         * Snapshots a response, or returns null when it must not be shared between clients.
+         */
+        private static Entry of(HttpResponse response, long now) {
+            if (response == null || response.isStreaming() || !isCacheableStatus(response.getStatusCode())) {
+                return null;
+            }
+            if (response.getBodyBuffer().isDirect()) {
+                // A file mapping: the metadata cache already shares it and rechecks the file,
+                // while an entry would keep serving the old mapping long after
+                return null;
+            }
+            Map<String, String> headers = response.getHeaders();
+            if (!response.getSetCookies().isEmpty() || header(headers, "Set-Cookie") != null) {
+                return null;
+            }
+            String cacheControl = header(headers, "Cache-Control");
+            if (cacheControl != null) {
+                String cc = cacheControl.toLowerCase(Locale.ROOT);
+                if (cc.contains("no-store") || cc.contains("no-cache") || cc.contains("private")) {
+                    return null;
+                }
+            }
+            String vary = header(headers, "Vary");
+            if (vary != null && !vary.trim().equalsIgnoreCase("Accept-Encoding")) {
+                // The key only covers Accept-Encoding
+                return null;
+            }
+            return new Entry(response, now);
+        }
+
+        // CGI scripts pick their own header case
+        private static String header(Map<String, String> headers, String name) {
+            String value = headers.get(name);
+            if (value != null) {
+                return value;
+            }
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        private static boolean isCacheableStatus(int code) {
+            return code == 200 || code == 203 || code == 301 || code == 302 || code == 307 || code == 308;
+        }
+
+        private HttpResponse toResponse(long ageMs) {
+            HttpResponse response = new HttpResponse();
+            response.setStatusCode(statusCode);
+            response.setStatusMessage(statusMessage);
+            response.setHeaders(new HashMap<>(headers));
+            response.addHeader("Age", String.valueOf(ageMs / 1000));
+            response.setBody(body.duplicate());
+            return response;
+        }
+    }
+
+    private static final class Store {
+        private final long maxBytes;
+        // Encodings the route can produce, in server preference; empty when it never encodes
+        private final List<String> encodings;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalBytes;
+
+        private Store(Route route) {
+            this.maxBytes = route.getCache().getMaxBytes();
+
+            Set<String> candidates = new LinkedHashSet<>();
+            if (route.isPrecompressedEnabled()) {
+                candidates.addAll(route.getCompression().getSidecars().keySet());
+            }
+            if (route.isCompressionEnabled()) {
+                candidates.addAll(ON_THE_FLY);
+            }
+            this.encodings = new ArrayList<>(candidates);
+        }
+
+        private synchronized Entry get(String key) {
+            return entries.get(key);
+        }
+
+        private synchronized void put(String key, Entry entry) {
+            if (entry.size > maxBytes) {
+                return;
+            }
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += entry.size;
+
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                totalBytes -= eldest.getValue().size;
+                it.remove();
+            }
+        }
+
+        private synchronized long totalBytes() {
+            return totalBytes;
+        }
+    }
+}
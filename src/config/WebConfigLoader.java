@@ -2,7 +2,13 @@ package config;
 
 import config.model.WebServerConfig;
 import handlers.model.Cgi;
+import handlers.model.CgiLimits;
+import handlers.model.CgiWorkers;
+import handlers.model.HandlerMount;
+import handlers.model.Proxy;
 import handlers.model.Upload;
+import routing.model.CachePolicy;
+import routing.model.Compression;
 import routing.model.Redirect;
 import routing.model.Route;
 import util.SonicLogger;
@@ -53,6 +59,22 @@ public class WebConfigLoader {
             config.setTimeouts(Long.parseLong(sections.get("timeouts")));
         }
 
+        if (sections.containsKey("minSendRate")) {
+            config.setMinSendRate(Long.parseLong(sections.get("minSendRate")));
+        }
+
+        if (sections.containsKey("docRootIndex")) {
+            config.setDocRootIndex(ValueParsers.parseBoolean(sections.get("docRootIndex")));
+        }
+
+        if (sections.containsKey("handlersDir")) {
+            config.setHandlersDir(ValueParsers.parseString(sections.get("handlersDir")));
+        }
+
+        if (sections.containsKey("cgiLimits")) {
+            config.setCgiLimits(parseCgiLimits(sections.get("cgiLimits")));
+        }
+
         if (sections.containsKey("servers")) {
             config.setServers(parseServers(sections.get("servers")));
         }
@@ -104,8 +126,23 @@ public class WebConfigLoader {
         return server;
     }
 
+    /**
+     * Parses either an object ({@code host}, {@code port}, or {@code unix} with an optional
+     * {@code mode}, plus {@code default}) or the shorthand string {@code "unix:/path.sock"}.
+     */
     private static WebServerConfig.ListenAddress parseListenAddress(String json) {
         WebServerConfig.ListenAddress addr = new WebServerConfig.ListenAddress();
+        json = json.trim();
+
+        if (json.startsWith("\"")) {
+            String spec = ValueParsers.parseString(json);
+            if (!spec.startsWith(WebServerConfig.ListenAddress.UNIX_PREFIX)) {
+                throw new IllegalArgumentException("listen must be an object or a \"unix:/path\" address: " + spec);
+            }
+            addr.setUnixPath(spec.substring(WebServerConfig.ListenAddress.UNIX_PREFIX.length()));
+            return addr;
+        }
+
         json = json.substring(1, json.length() - 1).trim();
 
         Map<String, String> fields = JsonParser.splitTopLevel(json);
@@ -116,6 +153,14 @@ public class WebConfigLoader {
         if (fields.containsKey("port")) {
             addr.setPort(ValueParsers.parseInt(fields.get("port")));
         }
+        if (fields.containsKey("unix")) {
+            String path = ValueParsers.parseString(fields.get("unix"));
+            addr.setUnixPath(path.startsWith(WebServerConfig.ListenAddress.UNIX_PREFIX)
+                    ? path.substring(WebServerConfig.ListenAddress.UNIX_PREFIX.length()) : path);
+        }
+        if (fields.containsKey("mode")) {
+            addr.setMode(ValueParsers.parseString(fields.get("mode")));
+        }
         if (fields.containsKey("default")) {
             addr.setDefault(ValueParsers.parseBoolean(fields.get("default")));
         }
@@ -166,6 +211,21 @@ public class WebConfigLoader {
         if (fields.containsKey("redirect")) {
             route.setRedirect(parseRedirect(fields.get("redirect")));
         }
+        if (fields.containsKey("handler")) {
+            route.setHandler(parseHandlerMount(fields.get("handler")));
+        }
+        if (fields.containsKey("proxy")) {
+            route.setProxy(parseProxy(fields.get("proxy")));
+        }
+        if (fields.containsKey("compression")) {
+            route.setCompression(parseCompression(fields.get("compression")));
+        }
+        if (fields.containsKey("cache")) {
+            route.setCache(parseCache(fields.get("cache")));
+        }
+        if (fields.containsKey("coalesce")) {
+            route.setCoalesce(ValueParsers.parseBoolean(fields.get("coalesce")));
+        }
 
         return route;
     }
@@ -204,10 +264,125 @@ public class WebConfigLoader {
         if (fields.containsKey("byExtension")) {
             cgi.setByExtension(ValueParsers.parseStringMap(fields.get("byExtension")));
         }
+        if (fields.containsKey("workers")) {
+            cgi.setWorkers(parseCgiWorkers(fields.get("workers")));
+        }
+        if (fields.containsKey("limits")) {
+            cgi.setLimits(parseCgiLimits(fields.get("limits")));
+        }
 
         return cgi;
     }
 
+    private static CgiWorkers parseCgiWorkers(String json) {
+        CgiWorkers workers = new CgiWorkers();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("enabled")) {
+            workers.setEnabled(ValueParsers.parseBoolean(fields.get("enabled")));
+        }
+        if (fields.containsKey("min")) {
+            workers.setMin(ValueParsers.parseInt(fields.get("min")));
+        }
+        if (fields.containsKey("max")) {
+            workers.setMax(ValueParsers.parseInt(fields.get("max")));
+        }
+        if (fields.containsKey("maxRequests")) {
+            workers.setMaxRequests(ValueParsers.parseInt(fields.get("maxRequests")));
+        }
+        if (fields.containsKey("healthCheckMs")) {
+            workers.setHealthCheckMs(ValueParsers.parseLong(fields.get("healthCheckMs")));
+        }
+        if (fields.containsKey("acquireTimeoutMs")) {
+            workers.setAcquireTimeoutMs(ValueParsers.parseLong(fields.get("acquireTimeoutMs")));
+        }
+        if (fields.containsKey("byExtension")) {
+            workers.setByExtension(ValueParsers.parseStringMap(fields.get("byExtension")));
+        }
+
+        return workers;
+    }
+
+    private static CgiLimits parseCgiLimits(String json) {
+        CgiLimits limits = new CgiLimits();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("maxConcurrent")) {
+            limits.setMaxConcurrent(ValueParsers.parseInt(fields.get("maxConcurrent")));
+        }
+        if (fields.containsKey("maxQueue")) {
+            limits.setMaxQueue(ValueParsers.parseInt(fields.get("maxQueue")));
+        }
+        if (fields.containsKey("queueTimeoutMs")) {
+            limits.setQueueTimeoutMs(ValueParsers.parseLong(fields.get("queueTimeoutMs")));
+        }
+        if (fields.containsKey("timeoutMs")) {
+            limits.setTimeoutMs(ValueParsers.parseLong(fields.get("timeoutMs")));
+        }
+        if (fields.containsKey("cpuTimeoutMs")) {
+            limits.setCpuTimeoutMs(ValueParsers.parseLong(fields.get("cpuTimeoutMs")));
+        }
+        if (fields.containsKey("retryAfterSeconds")) {
+            limits.setRetryAfterSeconds(ValueParsers.parseInt(fields.get("retryAfterSeconds")));
+        }
+
+        return limits;
+    }
+
+    private static Proxy parseProxy(String json) {
+        Proxy proxy = new Proxy();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("upstreams")) {
+            proxy.setUpstreams(ValueParsers.parseStringArray(fields.get("upstreams")));
+        }
+        if (fields.containsKey("balance")) {
+            proxy.setBalance(ValueParsers.parseString(fields.get("balance")));
+        }
+        if (fields.containsKey("connectTimeoutMs")) {
+            proxy.setConnectTimeoutMs(ValueParsers.parseLong(fields.get("connectTimeoutMs")));
+        }
+        if (fields.containsKey("readTimeoutMs")) {
+            proxy.setReadTimeoutMs(ValueParsers.parseLong(fields.get("readTimeoutMs")));
+        }
+        if (fields.containsKey("maxIdle")) {
+            proxy.setMaxIdle(ValueParsers.parseInt(fields.get("maxIdle")));
+        }
+        if (fields.containsKey("idleTimeoutMs")) {
+            proxy.setIdleTimeoutMs(ValueParsers.parseLong(fields.get("idleTimeoutMs")));
+        }
+        if (fields.containsKey("maxFails")) {
+            proxy.setMaxFails(ValueParsers.parseInt(fields.get("maxFails")));
+        }
+        if (fields.containsKey("failTimeoutMs")) {
+            proxy.setFailTimeoutMs(ValueParsers.parseLong(fields.get("failTimeoutMs")));
+        }
+
+        return proxy;
+    }
+
+    private static HandlerMount parseHandlerMount(String json) {
+        HandlerMount mount = new HandlerMount();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("name")) {
+            mount.setName(ValueParsers.parseString(fields.get("name")));
+        }
+        if (fields.containsKey("timeoutMs")) {
+            mount.setTimeoutMs(ValueParsers.parseLong(fields.get("timeoutMs")));
+        }
+
+        return mount;
+    }
+
     private static Redirect parseRedirect(String json) {
         Redirect redirect = new Redirect();
         json = json.substring(1, json.length() - 1).trim();
@@ -223,4 +398,54 @@ public class WebConfigLoader {
 
         return redirect;
     }
+
+    private static Compression parseCompression(String json) {
+        Compression compression = new Compression();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("enabled")) {
+            compression.setEnabled(ValueParsers.parseBoolean(fields.get("enabled")));
+        }
+        if (fields.containsKey("mimeTypes")) {
+            compression.setMimeTypes(ValueParsers.parseStringArray(fields.get("mimeTypes")));
+        }
+        if (fields.containsKey("minBytes")) {
+            compression.setMinBytes(ValueParsers.parseInt(fields.get("minBytes")));
+        }
+        if (fields.containsKey("level")) {
+            compression.setLevel(ValueParsers.parseInt(fields.get("level")));
+        }
+        if (fields.containsKey("precompressed")) {
+            compression.setPrecompressed(ValueParsers.parseBoolean(fields.get("precompressed")));
+        }
+        if (fields.containsKey("sidecars")) {
+            compression.setSidecars(ValueParsers.parseStringMap(fields.get("sidecars")));
+        }
+
+        return compression;
+    }
+
+    private static CachePolicy parseCache(String json) {
+        CachePolicy cache = new CachePolicy();
+        json = json.substring(1, json.length() - 1).trim();
+
+        Map<String, String> fields = JsonParser.splitTopLevel(json);
+
+        if (fields.containsKey("ttlMs")) {
+            cache.setTtlMs(ValueParsers.parseLong(fields.get("ttlMs")));
+        }
+        if (fields.containsKey("maxBytes")) {
+            cache.setMaxBytes(ValueParsers.parseLong(fields.get("maxBytes")));
+        }
+        if (fields.containsKey("staleWhileRevalidateMs")) {
+            cache.setStaleWhileRevalidateMs(ValueParsers.parseLong(fields.get("staleWhileRevalidateMs")));
+        }
+        if (fields.containsKey("varyByCookie")) {
+            cache.setVaryByCookie(ValueParsers.parseBoolean(fields.get("varyByCookie")));
+        }
+
+        return cache;
+    }
 }
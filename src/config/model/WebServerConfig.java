@@ -1,12 +1,25 @@
 package config.model;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import handlers.model.CgiLimits;
+import handlers.model.CgiWorkers;
+import handlers.model.Proxy;
+import routing.RouteTable;
+import routing.model.CachePolicy;
 import routing.model.Route;
 
 public class WebServerConfig {
 
+    private static final int DEFAULT_CGI_CONCURRENCY = 32;
+    private static final int UNIX_PATH_MAX_BYTES = 107;
+
     private long timeouts;
+    private boolean docRootIndex;
+    private long minSendRate = 1024;
+    private CgiLimits cgiLimits = defaultCgiLimits();
+    private String handlersDir;
     private List<ServerBlock> servers;
 
     // Getters and Setters
@@ -18,6 +31,54 @@ public class WebServerConfig {
         this.timeouts = timeouts;
     }
 
+    /**
+     * When enabled, every document root is indexed in memory at startup and static
+     * lookups are answered from that index.
+     */
+    public boolean isDocRootIndex() {
+        return docRootIndex;
+    }
+
+    public void setDocRootIndex(boolean docRootIndex) {
+        this.docRootIndex = docRootIndex;
+    }
+
+    /**
+     * Minimum average bytes per second a client must accept while a response is being
+     * written; slower connections are closed. 0 disables the check.
+     */
+    public long getMinSendRate() {
+        return minSendRate;
+    }
+
+    public void setMinSendRate(long minSendRate) {
+        this.minSendRate = minSendRate;
+    }
+
+    /**
+     * Server-wide CGI limits, on top of any route's own. Without configuration at most
+     * {@value #DEFAULT_CGI_CONCURRENCY} scripts run at once.
+     */
+    public CgiLimits getCgiLimits() {
+        return cgiLimits;
+    }
+
+    public void setCgiLimits(CgiLimits cgiLimits) {
+        this.cgiLimits = cgiLimits;
+    }
+
+    /**
+     * Directory whose JARs are searched for in-process request handlers, or null to only
+     * use the classpath.
+     */
+    public String getHandlersDir() {
+        return handlersDir;
+    }
+
+    public void setHandlersDir(String handlersDir) {
+        this.handlersDir = handlersDir;
+    }
+
     public List<ServerBlock> getServers() {
         return servers;
     }
@@ -35,6 +96,7 @@ public class WebServerConfig {
         private long clientMaxBodyBytes;
         private Map<String, String> errorPages;
         private List<Route> routes;
+        private RouteTable routeTable = RouteTable.compile(null);
 
         // Getters and Setters
         public String getName() {
@@ -91,33 +153,14 @@ public class WebServerConfig {
 
         public void setRoutes(List<Route> routes) {
             this.routes = routes;
+            this.routeTable = RouteTable.compile(routes);
         }
 
+        /**
+         * Longest route whose path is a segment-wise prefix of {@code path}.
+         */
         public Route findRoute(String path) {
-            if (routes == null) {
-                return null;
-            }
-
-            // Exact match first
-            for (Route route : routes) {
-                if (route.getPath().equals(path)) {
-                    return route;
-                }
-            }
-
-            // Prefix match (longest match wins)
-            Route bestMatch = null;
-            int longestMatch = 0;
-
-            for (Route route : routes) {
-                String routePath = route.getPath();
-                if (path.startsWith(routePath) && routePath.length() > longestMatch) {
-                    bestMatch = route;
-                    longestMatch = routePath.length();
-                }
-            }
-
-            return bestMatch;
+            return routeTable.match(path);
         }
 
         public String getErrorPage(int statusCode) {
@@ -137,9 +180,13 @@ public class WebServerConfig {
 
     public static class ListenAddress {
 
+        public static final String UNIX_PREFIX = "unix:";
+
         private String host;
         private int port;
         private boolean defaultServer;
+        private String unixPath;
+        private String mode;
 
         public String getHost() {
             return host;
@@ -165,9 +212,44 @@ public class WebServerConfig {
             this.defaultServer = defaultServer;
         }
 
+        /**
+         * Path of the Unix domain socket to listen on, or null for a TCP listener.
+         */
+        public String getUnixPath() {
+            return unixPath;
+        }
+
+        public void setUnixPath(String unixPath) {
+            this.unixPath = unixPath;
+        }
+
+        /**
+         * Octal permissions for the socket file, e.g. {@code "660"}, or null to keep the
+         * ones the process umask gives it.
+         */
+        public String getMode() {
+            return mode;
+        }
+
+        public void setMode(String mode) {
+            this.mode = mode;
+        }
+
+        public boolean isUnix() {
+            return unixPath != null;
+        }
+
+        /**
+         * Identifies the listener this address binds. Server blocks with the same key
+         * share one socket and are told apart by Host header.
+         */
+        public String key() {
+            return isUnix() ? UNIX_PREFIX + unixPath : String.valueOf(port);
+        }
+
         @Override
         public String toString() {
-            return host + ":" + port + (defaultServer ? " (default)" : "");
+            return (isUnix() ? UNIX_PREFIX + unixPath : host + ":" + port) + (defaultServer ? " (default)" : "");
         }
     }
 
@@ -210,13 +292,24 @@ public class WebServerConfig {
             errors.add("Timeouts must be positive");
         }
 
+        if (minSendRate < 0) {
+            errors.add("minSendRate must not be negative");
+        }
+
+        if (cgiLimits == null) {
+            cgiLimits = defaultCgiLimits();
+        } else if (!isValid(cgiLimits)) {
+            errors.add("cgiLimits must not be negative, using defaults");
+            cgiLimits = defaultCgiLimits();
+        }
+
         if (servers == null || servers.isEmpty()) {
             errors.add("At least one server block is required");
             return errors;
         }
 
         Set<String> serverNames = new HashSet<>();
-        Map<Integer, PortInfo> portInfo = new HashMap<>();
+        Map<String, PortInfo> portInfo = new HashMap<>();
         List<ServerBlock> validServers = new ArrayList<>();
         
         // Use a Set for O(1) lookups instead of List
@@ -237,23 +330,25 @@ public class WebServerConfig {
                 }
 
                 ListenAddress addr = server.getListen();
-                int port = addr.getPort();
-
-                if (port < 1 || port > 65535) {
-                    throw new IllegalArgumentException("Invalid port: " + port + " in server '" + server.getName() + "'");
-                }
-
-                if (portInfo.containsKey(port)) {
-                    throw new IllegalArgumentException("Duplicate port configuration: " + port
-                            + " (Server: " + server.getName() + ")");
+                String listener;
+                if (addr.isUnix()) {
+                    validateUnixListen(addr, server.getName());
+                    listener = addr.key();
+                } else {
+                    int port = addr.getPort();
+                    if (port < 1 || port > 65535) {
+                        throw new IllegalArgumentException("Invalid port: " + port + " in server '" + server.getName() + "'");
+                    }
+                    listener = "port " + port;
                 }
 
-                portInfo.putIfAbsent(port, new PortInfo());
-                PortInfo info = portInfo.get(port);
+                // Several blocks may share a listener; they are told apart by Host header
+                portInfo.putIfAbsent(addr.key(), new PortInfo());
+                PortInfo info = portInfo.get(addr.key());
 
                 if (addr.isDefault()) {
                     if (info.hasDefault) {
-                        throw new IllegalArgumentException("More than one default server on port " + port);
+                        throw new IllegalArgumentException("More than one default server on " + listener);
                     }
                     info.hasDefault = true;
                 }
@@ -263,8 +358,8 @@ public class WebServerConfig {
                 }
 
                 for (String sName : server.getServerNames()) {
-                    if (!info.names.add(sName)) {
-                        throw new IllegalArgumentException("Duplicate serverName '" + sName + "' on port " + port);
+                    if (!info.names.add(sName.toLowerCase(Locale.ROOT))) {
+                        throw new IllegalArgumentException("Duplicate serverName '" + sName + "' on " + listener);
                     }
                 }
 
@@ -290,6 +385,44 @@ public class WebServerConfig {
                             throw new IllegalArgumentException("Invalid HTTP method '" + method + "' in route '" + route.getPath() + "'");
                         }
                     }
+
+                    if (route.isCompressionEnabled()) {
+                        int level = route.getCompression().getLevel();
+                        if (level < -1 || level > 9) {
+                            throw new IllegalArgumentException("Invalid compression level " + level + " in route '" + route.getPath() + "'");
+                        }
+                    }
+
+                    if (route.isCgiEnabled() && route.getCgi().getWorkers() != null && route.getCgi().getWorkers().isEnabled()) {
+                        CgiWorkers workers = route.getCgi().getWorkers();
+                        if (workers.getMin() < 0 || workers.getMax() < 1 || workers.getMin() > workers.getMax()) {
+                            throw new IllegalArgumentException("CGI workers need 0 <= min <= max and max >= 1 in route '" + route.getPath() + "'");
+                        }
+                    }
+
+                    if (route.isCgiEnabled() && route.getCgi().getLimits() != null && !isValid(route.getCgi().getLimits())) {
+                        throw new IllegalArgumentException("CGI limits must not be negative in route '" + route.getPath() + "'");
+                    }
+
+                    if (route.getHandler() != null) {
+                        if (route.getHandler().getName() == null || route.getHandler().getName().isEmpty()) {
+                            throw new IllegalArgumentException("Request handler name is required in route '" + route.getPath() + "'");
+                        }
+                        if (route.getHandler().getTimeoutMs() < 0) {
+                            throw new IllegalArgumentException("Request handler timeout must not be negative in route '" + route.getPath() + "'");
+                        }
+                    }
+
+                    if (route.getProxy() != null) {
+                        validateProxy(route.getProxy(), route.getPath());
+                    }
+
+                    if (route.getCache() != null) {
+                        CachePolicy cache = route.getCache();
+                        if (cache.getTtlMs() < 0 || cache.getMaxBytes() < 0 || cache.getStaleWhileRevalidateMs() < 0) {
+                            throw new IllegalArgumentException("Cache settings must not be negative in route '" + route.getPath() + "'");
+                        }
+                    }
                 }
 
                 if (server.getErrorPages() == null || server.getErrorPages().isEmpty()) {
@@ -321,6 +454,7 @@ public class WebServerConfig {
         StringBuilder sb = new StringBuilder();
         sb.append("WebServerConfig{\n");
         sb.append("  timeouts=").append(timeouts).append("\n");
+        sb.append("  minSendRate=").append(minSendRate).append("\n");
         sb.append("  servers=[\n");
         if (servers != null) {
             for (ServerBlock server : servers) {
@@ -332,6 +466,69 @@ public class WebServerConfig {
         return sb.toString();
     }
 
+    private static CgiLimits defaultCgiLimits() {
+        CgiLimits limits = new CgiLimits();
+        limits.setMaxConcurrent(DEFAULT_CGI_CONCURRENCY);
+        return limits;
+    }
+
+    private static boolean isValid(CgiLimits limits) {
+        return limits.getMaxConcurrent() >= 0 && limits.getMaxQueue() >= 0 && limits.getQueueTimeoutMs() >= 0
+                && limits.getTimeoutMs() >= 0 && limits.getCpuTimeoutMs() >= 0 && limits.getRetryAfterSeconds() >= 0;
+    }
+
+    private static void validateProxy(Proxy proxy, String routePath) {
+        if (proxy.getUpstreams() == null || proxy.getUpstreams().isEmpty()) {
+            throw new IllegalArgumentException("Proxy route '" + routePath + "' needs at least one upstream");
+        }
+        for (String upstream : proxy.getUpstreams()) {
+            if (!isValidUpstream(upstream)) {
+                throw new IllegalArgumentException("Invalid upstream '" + upstream + "' in route '" + routePath
+                        + "'; expected host:port");
+            }
+        }
+        if (!Proxy.ROUND_ROBIN.equals(proxy.getBalance()) && !Proxy.LEAST_CONN.equals(proxy.getBalance())) {
+            throw new IllegalArgumentException("Unknown proxy balance '" + proxy.getBalance() + "' in route '"
+                    + routePath + "'; expected " + Proxy.ROUND_ROBIN + " or " + Proxy.LEAST_CONN);
+        }
+        if (proxy.getConnectTimeoutMs() < 0 || proxy.getReadTimeoutMs() < 0 || proxy.getMaxIdle() < 0
+                || proxy.getIdleTimeoutMs() < 0 || proxy.getMaxFails() < 0 || proxy.getFailTimeoutMs() < 0) {
+            throw new IllegalArgumentException("Proxy settings must not be negative in route '" + routePath + "'");
+        }
+    }
+
+    private static boolean isValidUpstream(String upstream) {
+        String address = upstream.startsWith("http://") ? upstream.substring("http://".length()) : upstream;
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(address.substring(colon + 1));
+            return port >= 1 && port <= 65535;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The kernel keeps socket paths in a fixed 108-byte field, terminator included.
+     */
+    private static void validateUnixListen(ListenAddress addr, String serverName) {
+        String path = addr.getUnixPath();
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException("Empty unix socket path in server '" + serverName + "'");
+        }
+        if (path.getBytes(StandardCharsets.UTF_8).length > UNIX_PATH_MAX_BYTES) {
+            throw new IllegalArgumentException("Unix socket path longer than " + UNIX_PATH_MAX_BYTES
+                    + " bytes in server '" + serverName + "': " + path);
+        }
+        if (addr.getMode() != null && !addr.getMode().matches("0?[0-7]{3}")) {
+            throw new IllegalArgumentException("Invalid unix socket mode '" + addr.getMode()
+                    + "' in server '" + serverName + "'; expected octal such as \"660\"");
+        }
+    }
+
     private static class PortInfo {
         boolean hasDefault = false;
         Set<String> names = new HashSet<>();
@@ -0,0 +1,263 @@
+package handlers;
+
+import cache.DirectoryListingCache.Entry;
+import cache.DirectoryListingCache.Listing;
+import cache.DirectoryListingCache.SortKey;
+import http.model.BodyProducer;
+import http.model.HttpRequest;
+import http.model.ResponseBody;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders one page of a cached directory listing as HTML or JSON.
+ *
+ * Query parameters: {@code sort=name|size|mtime}, {@code order=asc|desc},
+ * {@code page} (1-based), {@code limit} and {@code format=json}. Only the requested page
+ * is rendered, so the response size does not grow with the directory, and it is
+ * streamed in batches of entries rather than built as one string.
+ */
+public class AutoIndex {
+
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAX_LIMIT = 10_000;
+    private static final int STREAM_BATCH = 128;
+
+    private final Listing listing;
+    private final String requestPath;
+    private final SortKey sortKey;
+    private final boolean descending;
+    private final int limit;
+    private final int page;
+    private final boolean json;
+
+    public AutoIndex(Listing listing, HttpRequest request) {
+        this.listing = listing;
+        this.requestPath = request.getPath();
+        this.sortKey = SortKey.parse(request.getQueryParam("sort"));
+        this.descending = "desc".equalsIgnoreCase(request.getQueryParam("order"));
+        this.limit = clamp(parseInt(request.getQueryParam("limit"), DEFAULT_LIMIT), 1, MAX_LIMIT);
+        int lastPage = Math.max(1, (listing.size() + limit - 1) / limit);
+        this.page = clamp(parseInt(request.getQueryParam("page"), 1), 1, lastPage);
+        this.json = "json".equalsIgnoreCase(request.getQueryParam("format"));
+    }
+
+    public String getContentType() {
+        return json ? "application/json; charset=UTF-8" : "text/html; charset=UTF-8";
+    }
+
+    /**
+     * Streams the page: the head, then batches of entries, then the tail, each rendered
+     * only when the previous piece has been written.
+     */
+    public ResponseBody stream() {
+        return ResponseBody.produced(new PageProducer(listing.sorted(sortKey, descending)));
+    }
+
+    private String head(int total, int from, int to) {
+        return json ? jsonHead(total) : htmlHead(total, from, to);
+    }
+
+    private String entries(Entry[] entries, int from, int to) {
+        StringBuilder out = new StringBuilder((to - from) * 96);
+        for (int i = from; i < to; i++) {
+            if (json) {
+                appendJsonEntry(out, entries[i], i > (page - 1) * limit);
+            } else {
+                appendHtmlEntry(out, entries[i]);
+            }
+        }
+        return out.toString();
+    }
+
+    private String tail(int total, int from, int to) {
+        if (json) {
+            return "]}";
+        }
+        StringBuilder html = new StringBuilder(256);
+        html.append("</ul>");
+        appendNav(html, total, from, to);
+        html.append("</body></html>");
+        return html.toString();
+    }
+
+    private String htmlHead(int total, int from, int to) {
+        StringBuilder html = new StringBuilder(1024);
+        String title = escapeHtml(requestPath);
+
+        html.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\">");
+        html.append("<title>Index of ").append(title).append("</title>");
+        html.append("<style>");
+        html.append("body{font-family:Arial;margin:40px;background:#f5f5f5}");
+        html.append("h1{color:#333;border-bottom:2px solid #da70d6;padding-bottom:10px}");
+        html.append("ul{list-style:none;padding:0;background:#fff;border-radius:5px}");
+        html.append("li{padding:12px;border-bottom:1px solid #eee}");
+        html.append("li:hover{background:#f9f9f9}");
+        html.append("a{color:#8a2be2;text-decoration:none}");
+        html.append("a:hover{text-decoration:underline}");
+        html.append("nav{margin:10px 0;color:#666}nav a{margin-right:12px}");
+        html.append("</style></head><body>");
+        html.append("<h1>📁 Index of ").append(title).append("</h1>");
+        appendNav(html, total, from, to);
+        html.append("<ul>");
+
+        if (!requestPath.equals("/")) {
+            html.append("<li><a href=\"..\">⬆️ Parent Directory</a></li>");
+        }
+        return html.toString();
+    }
+
+    private void appendHtmlEntry(StringBuilder html, Entry entry) {
+        String base = requestPath.endsWith("/") ? requestPath : requestPath + "/";
+        String name = entry.getName();
+        String suffix = entry.isDirectory() ? "/" : "";
+        html.append("<li><a href=\"").append(escapeHtml(base + encodePathSegment(name) + suffix)).append("\">")
+                .append(entry.isDirectory() ? "📁 " : "📄 ")
+                .append(escapeHtml(name + suffix)).append("</a></li>");
+    }
+
+    private void appendNav(StringBuilder html, int total, int from, int to) {
+        html.append("<nav>Sort: ");
+        for (SortKey key : SortKey.values()) {
+            boolean nextDesc = key == sortKey && !descending;
+            html.append("<a href=\"?sort=").append(key.name().toLowerCase())
+                    .append("&amp;order=").append(nextDesc ? "desc" : "asc")
+                    .append("&amp;limit=").append(limit).append("\">")
+                    .append(key.name().toLowerCase()).append("</a>");
+        }
+        html.append(" | ").append(total == 0 ? 0 : from + 1).append("–").append(to).append(" of ").append(total);
+        if (page > 1) {
+            html.append(" <a href=\"").append(pageQuery(page - 1)).append("\">« Previous</a>");
+        }
+        if (to < total) {
+            html.append(" <a href=\"").append(pageQuery(page + 1)).append("\">Next »</a>");
+        }
+        html.append("</nav>");
+    }
+
+    private String pageQuery(int targetPage) {
+        return "?sort=" + sortKey.name().toLowerCase() + "&amp;order=" + (descending ? "desc" : "asc")
+                + "&amp;limit=" + limit + "&amp;page=" + targetPage;
+    }
+
+    private String jsonHead(int total) {
+        return "{\"path\":\"" + escapeJson(requestPath) + '"'
+                + ",\"total\":" + total
+                + ",\"page\":" + page
+                + ",\"limit\":" + limit
+                + ",\"entries\":[";
+    }
+
+    private void appendJsonEntry(StringBuilder json, Entry entry, boolean separator) {
+        if (separator) json.append(',');
+        json.append("{\"name\":\"").append(escapeJson(entry.getName())).append('"')
+                .append(",\"type\":\"").append(entry.isDirectory() ? "dir" : "file").append('"')
+                .append(",\"size\":").append(entry.getSize())
+                .append(",\"mtime\":").append(entry.getLastModified())
+                .append('}');
+    }
+
+    private final class PageProducer implements BodyProducer {
+        private final Entry[] entries;
+        private final int from;
+        private final int to;
+        private int next = -1;
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+
+        private PageProducer(Entry[] entries) {
+            this.entries = entries;
+            this.from = (page - 1) * limit;
+            this.to = Math.min(entries.length, from + limit);
+        }
+
+        @Override
+        public boolean produce(ByteBuffer dst) {
+            while (dst.hasRemaining()) {
+                if (!pending.hasRemaining()) {
+                    String piece = nextPiece();
+                    if (piece == null) {
+                        return true;
+                    }
+                    pending = ByteBuffer.wrap(piece.getBytes(StandardCharsets.UTF_8));
+                }
+                int n = Math.min(dst.remaining(), pending.remaining());
+                dst.put(pending.slice().limit(n));
+                pending.position(pending.position() + n);
+            }
+            return false;
+        }
+
+        private String nextPiece() {
+            if (next == -1) {
+                next = from;
+                return head(entries.length, from, to);
+            }
+            if (next < to) {
+                int batchEnd = Math.min(to, next + STREAM_BATCH);
+                String batch = entries(entries, next, batchEnd);
+                next = batchEnd;
+                return batch;
+            }
+            if (next == to) {
+                next++;
+                return tail(entries.length, from, to);
+            }
+            return null;
+        }
+    }
+
+    private static String encodePathSegment(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static String escapeHtml(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append("&gt;");
+                case '&' -> out.append("&amp;");
+                case '"' -> out.append("&quot;");
+                default -> out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static int parseInt(String value, int def) {
+        if (value == null || value.isEmpty()) return def;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -2,21 +2,75 @@ package handlers;
 
 import config.model.WebServerConfig.ServerBlock;
 import handlers.model.Cgi;
+import handlers.model.CgiLimits;
+import http.PipedBody;
+import http.RequestBodyPipe;
 import http.model.HttpRequest;
 import http.model.HttpResponse;
 import http.model.HttpStatus;
+import http.model.ResponseBody;
 import routing.model.Route;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Locale;
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Runs CGI scripts off the event loop, either as a process per request or on a pooled
+ * worker, and answers with a deferred response that completes once the header block has
+ * been read. Large output is streamed to the client with backpressure instead of being
+ * collected first.
+ */
 public class CgiHandler {
-    private final ErrorHandler errorHandler = new ErrorHandler();
+    private static final SonicLogger logger = SonicLogger.getLogger(CgiHandler.class);
+
+    // Output up to this size is collected before answering, so the exit status can still decide
+    private static final int BUFFERED_OUTPUT_BYTES = ResponseBody.MAX_BUFFERED_BYTES;
+    // Bytes of streamed output held between the script and a slow client
+    private static final int PIPE_CAPACITY = 64 * 1024;
+    private static final int STREAM_CHUNK_BYTES = 16 * 1024;
+
+    // One thread per running script, blocking on its pipes instead of on the event loop
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "cgi-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final LongAdder SPAWNS = Metrics.counter("cgi.spawned");
+    private static final LongAdder SPAWN_NANOS = new LongAdder();
+
+    static {
+        Metrics.gauge("cgi.spawnAvgMs", () -> {
+            long spawns = SPAWNS.sum();
+            return String.format("%.2f", spawns == 0 ? 0.0 : SPAWN_NANOS.sum() / 1e6 / spawns);
+        });
+    }
+
+    // Server blocks do not override equals, so each configured block gets its own entry
+    private static final Map<ServerBlock, Map<String, String>> SERVER_ENVIRONMENTS = new ConcurrentHashMap<>();
+
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
 
     public HttpResponse handle(HttpRequest request, ServerBlock server, Route route) {
         Cgi cfg = route != null ? route.getCgi() : null;
@@ -50,75 +104,278 @@ public class CgiHandler {
         int queryIdx = scriptPath.indexOf('?');
         String cleanPath = queryIdx >= 0 ? scriptPath.substring(0, queryIdx) : scriptPath;
 
-        File binDir = new File(cfg.getBinDir());
-        File script = new File(binDir, cleanPath);
+        CgiScripts.Script script = CgiScripts.resolve(cfg, cleanPath);
+        if (script == null) {
+            return error(server, HttpStatus.NOT_FOUND);
+        }
 
-        try {
-            String scriptCanonical = script.getCanonicalPath();
-            if (!scriptCanonical.startsWith(binDir.getCanonicalPath())) {
-                return error(server, HttpStatus.NOT_FOUND);
+        CgiWorkerPool pool = CgiWorkerPool.forExtension(cfg, script.extension);
+        CgiLimits limits = CgiLimiter.limitsFor(cfg.getLimits());
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        // Queued requests hold no thread; the script starts once the route and global limits allow
+        CgiLimiter.Admission admission = CgiLimiter.admission(cfg.getLimits());
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                admission.cancel();
             }
-            script = new File(scriptCanonical);
+        });
+        admission.enter(() -> EXECUTOR.execute(() -> {
+            try {
+                if (future.isDone()) {
+                    return;
+                }
+                if (pool != null) {
+                    executeOnWorker(future, pool, request, script, server, limits);
+                } else {
+                    executeCgi(future, request, script, server, limits);
+                }
+            } catch (RuntimeException e) {
+                logger.error("CGI execution failed for " + script.path, e);
+                future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+            } finally {
+                admission.release();
+                RequestBodies.close(request);
+            }
+        }), () -> {
+            RequestBodies.close(request);
+            future.complete(overloaded(server, limits));
+        });
+        return HttpResponse.deferred(future);
+    }
+
+    private void executeCgi(CompletableFuture<HttpResponse> future, HttpRequest request,
+            CgiScripts.Script script, ServerBlock server, CgiLimits limits) {
+        ProcessBuilder pb = new ProcessBuilder(script.interpreter, script.path);
+        pb.directory(script.file.getParentFile()).redirectErrorStream(true);
+        Map<String, String> env = pb.environment();
+        env.putAll(serverEnvironment(server));
+        addRequestEnvironment(env, request, script);
+
+        Process p;
+        long spawnStart = System.nanoTime();
+        try {
+            p = pb.start();
         } catch (IOException e) {
-            return error(server, HttpStatus.INTERNAL_SERVER_ERROR);
+            future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+            return;
         }
+        SPAWNS.increment();
+        SPAWN_NANOS.add(System.nanoTime() - spawnStart);
 
-        if (!script.exists() || script.isDirectory()) {
-            return error(server, HttpStatus.NOT_FOUND);
+        // A timed-out or abandoned request kills the script
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                CgiReaper.killTree(p.toHandle());
+            }
+        });
+
+        // Feed stdin on its own thread while stdout is read here, so a script that writes
+        // before reading all of its input cannot deadlock on a full pipe
+        EXECUTOR.execute(() -> {
+            try {
+                writeRequestBody(p.getOutputStream(), request);
+            } catch (IOException e) {
+                logger.debug("CGI script stopped reading its input: " + e.getMessage());
+            }
+        });
+
+        CgiReaper.Watch watch = CgiReaper.watch(p.toHandle(), limits, () -> timedOut(future, server));
+        try {
+            respond(future, p.getInputStream(), p::waitFor, server, watch);
+        } finally {
+            watch.close();
+            if (p.isAlive()) {
+                CgiReaper.killTree(p.toHandle());
+            }
         }
+    }
 
-        String interpreter = cfg.getInterpreterForExtension(getExtension(script.getName()));
-        if (interpreter == null || interpreter.isEmpty()) {
-            return error(server, HttpStatus.NOT_FOUND);
+    /**
+     * Runs the script on a pooled worker. Output is handled exactly as in fork mode, so
+     * scripts behave the same either way apart from stderr, which goes to the server log.
+     * A streaming response keeps its worker until the client has read it.
+     */
+    private void executeOnWorker(CompletableFuture<HttpResponse> future, CgiWorkerPool pool, HttpRequest request,
+            CgiScripts.Script script, ServerBlock server, CgiLimits limits) {
+        CgiWorker worker;
+        try {
+            worker = pool.acquire();
+        } catch (IOException e) {
+            future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+            return;
+        }
+        if (worker == null) {
+            future.complete(overloaded(server, limits));
+            return;
         }
 
-        return executeCgi(request, script, interpreter, server);
+        // Whoever flips this first owns the worker: the request, or a cancellation killing it
+        AtomicBoolean settled = new AtomicBoolean();
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled() && settled.compareAndSet(false, true)) {
+                worker.destroy();
+            }
+        });
+
+        Map<String, String> env = new HashMap<>(serverEnvironment(server));
+        addRequestEnvironment(env, request, script);
+        env.put("SCRIPT_FILENAME", script.path);
+
+        boolean reusable = false;
+        CgiReaper.Watch watch = CgiReaper.watch(worker.handle(), limits, () -> timedOut(future, server));
+        try (InputStream body = RequestBodies.open(request)) {
+            worker.send(env, body, RequestBodies.length(request), EXECUTOR);
+            respond(future, worker.output(), worker::exitStatus, server, watch);
+            reusable = worker.isOutputConsumed();
+        } catch (IOException e) {
+            future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+        } finally {
+            watch.close();
+            pool.release(worker, settled.compareAndSet(false, true) && reusable);
+        }
     }
 
-    private HttpResponse executeCgi(HttpRequest request, File script, String interpreter, ServerBlock server) {
-        ProcessBuilder pb = new ProcessBuilder(interpreter, script.getAbsolutePath());
-        pb.directory(script.getParentFile()).redirectErrorStream(true);
-        
-        setupEnvironment(pb, request, script, server);
-
+    /**
+     * Reads the script output and completes {@code future}. The header block is parsed
+     * as it arrives; the body bytes after it are never decoded or re-encoded. A body that
+     * ends within {@link #BUFFERED_OUTPUT_BYTES} is answered once the exit status is
+     * known, so a failing script still gets a clean 500. A longer body is answered as
+     * soon as that much has been read and the rest is streamed through a
+     * {@link PipedBody} fed by this thread, which blocks whenever the client falls
+     * behind. A script that fails after that point has its response cut off instead.
+     * Time spent blocked on that client is not held against the script's wall-clock limit.
+     */
+    private void respond(CompletableFuture<HttpResponse> future, InputStream output, ExitStatus exit,
+            ServerBlock server, CgiReaper.Watch watch) {
+        CgiOutputParser parser = new CgiOutputParser();
+        byte[] buf = new byte[8192];
+        int filled = 0;
+        boolean eof = false;
         try {
-            Process p = pb.start();
-            
-            writeRequestBody(p.getOutputStream(), request);
+            while (!parser.isComplete()) {
+                int n = output.read(buf);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                int bodyStart = parser.feed(buf, 0, n);
+                if (bodyStart >= 0) {
+                    // Keep the first body bytes at the front of the buffer
+                    filled = n - bodyStart;
+                    System.arraycopy(buf, bodyStart, buf, 0, filled);
+                }
+            }
+            while (!eof && filled < BUFFERED_OUTPUT_BYTES) {
+                if (filled == buf.length) {
+                    buf = Arrays.copyOf(buf, Math.min(BUFFERED_OUTPUT_BYTES, buf.length * 2));
+                }
+                int n = output.read(buf, filled, buf.length - filled);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                filled += n;
+            }
+            if (future.isDone()) {
+                return;
+            }
 
-            byte[] output = readAll(p.getInputStream());
-            return p.waitFor() == 0 ? parseCgiOutput(output) : error(server, HttpStatus.INTERNAL_SERVER_ERROR);
-            
+            HttpResponse response = new HttpResponse();
+            if (eof) {
+                if (exit.await() != 0) {
+                    future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+                    return;
+                }
+                if (parser.isComplete()) {
+                    parser.applyTo(response);
+                    response.setBody(filled == buf.length ? buf : Arrays.copyOf(buf, filled));
+                } else {
+                    // No header block at all: everything the script wrote is the body
+                    response.setStatus(HttpStatus.OK);
+                    response.setBody(parser.unparsed());
+                }
+                completeHeaders(response, response.getBodyLength());
+                future.complete(response);
+                return;
+            }
+
+            parser.applyTo(response);
+            long length = declaredLength(response);
+            PipedBody body = new PipedBody(PIPE_CAPACITY, length);
+            watch.excludeStalls(body::stalledNanos);
+            response.setBody(body);
+            completeHeaders(response, length);
+            if (future.complete(response)) {
+                pump(body, buf, filled, output, exit);
+            }
+        } catch (IOException e) {
+            logger.warn("Bad CGI output: " + e.getMessage());
+            future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            return error(server, HttpStatus.INTERNAL_SERVER_ERROR);
+            future.complete(error(server, HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    private void pump(PipedBody body, byte[] head, int headLength, InputStream output, ExitStatus exit) {
+        try {
+            body.write(head, 0, headLength);
+            byte[] buf = new byte[STREAM_CHUNK_BYTES];
+            int n;
+            while ((n = output.read(buf)) >= 0) {
+                body.write(buf, 0, n);
+            }
+            int status = exit.await();
+            if (status != 0) {
+                body.fail(new IOException("CGI script exited with status " + status));
+            } else {
+                body.finish();
+            }
         } catch (IOException e) {
-            return error(server, HttpStatus.INTERNAL_SERVER_ERROR);
+            // The client went away or the script's output broke off
+            body.fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            body.fail(new IOException("Interrupted while streaming CGI output"));
         }
     }
 
-    private void setupEnvironment(ProcessBuilder pb, HttpRequest request, File script, ServerBlock server) {
-        var env = pb.environment();
-        
+    /**
+     * The variables that are the same for every script of a server block, built once.
+     */
+    private static Map<String, String> serverEnvironment(ServerBlock server) {
+        if (server == null) {
+            return Map.of();
+        }
+        return SERVER_ENVIRONMENTS.computeIfAbsent(server, s -> {
+            Map<String, String> env = new HashMap<>();
+            if (s.getListen() != null) {
+                // A Unix socket listener has no port to report
+                if (!s.getListen().isUnix()) {
+                    env.put("SERVER_PORT", String.valueOf(s.getListen().getPort()));
+                }
+                if (s.getServerNames() != null && !s.getServerNames().isEmpty()) {
+                    env.put("SERVER_NAME", s.getServerNames().get(0));
+                }
+            }
+            return Map.copyOf(env);
+        });
+    }
+
+    private void addRequestEnvironment(Map<String, String> env, HttpRequest request, CgiScripts.Script script) {
         env.put("REQUEST_METHOD", request.getMethod() != null ? request.getMethod() : "GET");
         env.put("QUERY_STRING", getQueryString(request));
         env.put("CONTENT_LENGTH", getContentLengthForCgi(request));
-        
+
         String ct = getHeader(request, "Content-Type", "");
         if (!ct.isEmpty()) env.put("CONTENT_TYPE", ct);
         String cookie = getHeader(request, "Cookie", "");
         if (!cookie.isEmpty()) env.put("HTTP_COOKIE", cookie);
-        
-        env.put("PATH_INFO", script.getAbsolutePath());
+
+        env.put("PATH_INFO", script.path);
         env.put("SERVER_PROTOCOL", request.getHttpVersion() != null && !request.getHttpVersion().isEmpty()
             ? request.getHttpVersion() : "HTTP/1.1");
-        
-        if (server != null && server.getListen() != null) {
-            env.put("SERVER_PORT", String.valueOf(server.getListen().getPort()));
-            if (server.getServerNames() != null && !server.getServerNames().isEmpty()) {
-                env.put("SERVER_NAME", server.getServerNames().get(0));
-            }
-        }
     }
 
     private String getQueryString(HttpRequest request) {
@@ -134,6 +391,15 @@ public class CgiHandler {
     }
 
     private void writeRequestBody(OutputStream outputStream, HttpRequest request) throws IOException {
+        RequestBodyPipe pipe = request.getBodyPipe();
+        if (pipe != null) {
+            // Bytes go to the script as they arrive from the client
+            try (OutputStream os = outputStream; pipe) {
+                pipe.transferTo(os);
+            }
+            return;
+        }
+
         byte[] body = request.getBody();
         if (body != null && body.length > 0) {
             try (OutputStream os = outputStream) {
@@ -170,77 +436,38 @@ public class CgiHandler {
         if (uploaded != null && uploaded.exists()) {
             return String.valueOf(uploaded.length());
         }
+        if (request.getBodyPipe() != null) {
+            return String.valueOf(request.getBodyPipe().length());
+        }
         return header != null ? header : "";
     }
 
-    private HttpResponse parseCgiOutput(byte[] rawBytes) {
-        HttpResponse response = new HttpResponse();
-        String raw = new String(rawBytes);
-
-        int sep = raw.indexOf("\r\n\r\n");
-        if (sep < 0) sep = raw.indexOf("\n\n");
-        
-        String headerPart = sep >= 0 ? raw.substring(0, sep) : "";
-        byte[] body = (sep >= 0 ? raw.substring(sep + (raw.charAt(sep) == '\r' ? 4 : 2)) : raw).getBytes();
-
-        int statusCode = 200;
-        String statusMsg = "OK";
-        boolean hasContentType = false;
-
-        for (String line : headerPart.split("\\r?\\n")) {
-            int colon = line.indexOf(':');
-            if (colon <= 0) continue;
-            
-            String name = line.substring(0, colon).trim();
-            String value = line.substring(colon + 1).trim();
-
-            if ("Status".equalsIgnoreCase(name)) {
-                String[] parts = value.split("\\s+", 2);
-                try {
-                    statusCode = Integer.parseInt(parts[0]);
-                    if (parts.length > 1) statusMsg = parts[1];
-                } catch (NumberFormatException e) {
-                    statusCode = 500;
-                    statusMsg = "Internal Server Error";
+    /**
+     * The body length the script announced, or unknown (sent chunked) if it gave none.
+     */
+    private long declaredLength(HttpResponse response) {
+        String header = response.getHeader("Content-Length");
+        if (header != null) {
+            try {
+                long length = Long.parseLong(header.trim());
+                if (length >= 0) {
+                    return length;
                 }
-            } else {
-                if ("Content-Type".equalsIgnoreCase(name)) hasContentType = true;
-                response.addHeader(name, value);
+            } catch (NumberFormatException e) {
+                // Fall through and let the writer frame the body
             }
+            response.removeHeader("Content-Length");
         }
+        return ResponseBody.UNKNOWN_LENGTH;
+    }
 
-        HttpStatus status = HttpStatus.fromCode(statusCode);
-        if (status != null) {
-            response.setStatus(status);
-        } else {
-            response.setStatusCode(statusCode);
-            response.setStatusMessage(statusMsg);
-        }
-        response.setBody(body);
-
-        if (!hasContentType) {
+    private void completeHeaders(HttpResponse response, long length) {
+        if (response.getHeader("Content-Type") == null) {
             response.addHeader("Content-Type", "text/html; charset=UTF-8");
         }
-        if (!response.getHeaders().containsKey("Content-Length")) {
-            response.addHeader("Content-Length", String.valueOf(body.length));
-        }
-
-        return response;
-    }
-
-    private String getExtension(String filename) {
-        int dot = filename.lastIndexOf('.');
-        return dot >= 0 ? filename.substring(dot).toLowerCase(Locale.ROOT) : "";
-    }
-
-    private byte[] readAll(InputStream is) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[4096];
-        int n;
-        while ((n = is.read(buf)) != -1) {
-            out.write(buf, 0, n);
+        if (length >= 0 && response.getHeader("Content-Length") == null) {
+            response.addHeader("Content-Length", String.valueOf(length));
         }
-        return out.toByteArray();
     }
 
     private String getHeader(HttpRequest request, String name, String def) {
@@ -253,4 +480,19 @@ public class CgiHandler {
     private HttpResponse error(ServerBlock server, HttpStatus status) {
         return errorHandler.handle(server, status);
     }
+
+    private HttpResponse overloaded(ServerBlock server, CgiLimits limits) {
+        HttpResponse response = error(server, HttpStatus.SERVICE_UNAVAILABLE);
+        response.addHeader("Retry-After", String.valueOf(limits.getRetryAfterSeconds()));
+        return response;
+    }
+
+    private void timedOut(CompletableFuture<HttpResponse> future, ServerBlock server) {
+        future.complete(error(server, HttpStatus.GATEWAY_TIMEOUT));
+    }
+
+    @FunctionalInterface
+    private interface ExitStatus {
+        int await() throws InterruptedException;
+    }
 }
@@ -0,0 +1,209 @@
+package handlers;
+
+import handlers.model.CgiLimits;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import util.Metrics;
+
+/**
+ * Admission control for CGI scripts: a request runs once both its route's gate and the
+ * global gate have a free slot. Requests that find a gate full wait in a bounded FIFO
+ * queue without holding a thread; a full queue, or a wait longer than
+ * {@code queueTimeoutMs}, rejects the request.
+ */
+public final class CgiLimiter {
+
+    private static final LongAdder REJECTED = Metrics.counter("cgi.rejected");
+    private static final AtomicInteger QUEUED = new AtomicInteger();
+
+    // Route limits do not override equals, so each configured route gets its own gate
+    private static final Map<CgiLimits, Gate> ROUTE_GATES = new ConcurrentHashMap<>();
+    private static volatile Gate global = new Gate(new CgiLimits());
+
+    static {
+        Metrics.gauge("cgi.running", () -> global.running());
+        Metrics.gauge("cgi.queued", QUEUED::get);
+    }
+
+    private CgiLimiter() {
+    }
+
+    /**
+     * Installs the server-wide limits. Scripts already admitted keep their slots in the old gate.
+     */
+    public static void configure(CgiLimits limits) {
+        global = new Gate(limits != null ? limits : new CgiLimits());
+    }
+
+    /**
+     * The limits whose timeouts apply to a route: its own, or the server-wide ones.
+     */
+    static CgiLimits limitsFor(CgiLimits routeLimits) {
+        return routeLimits != null ? routeLimits : global.limits;
+    }
+
+    static Admission admission(CgiLimits routeLimits) {
+        Gate route = routeLimits != null ? ROUTE_GATES.computeIfAbsent(routeLimits, Gate::new) : null;
+        return new Admission(route, global);
+    }
+
+    /**
+     * One request's passage through the gates. {@link #enter} runs {@code start} once
+     * admitted; whoever runs the script must then call {@link #release}.
+     */
+    static final class Admission {
+        private final Gate route;
+        private final Gate global;
+        private Waiter waiter;
+        private boolean cancelled;
+
+        private Admission(Gate route, Gate global) {
+            this.route = route;
+            this.global = global;
+        }
+
+        void enter(Runnable start, Runnable reject) {
+            Runnable rejectCounted = () -> {
+                REJECTED.increment();
+                reject.run();
+            };
+            Runnable enterGlobal = () -> global.enter(newWaiter(global, start, () -> {
+                if (route != null) {
+                    route.leave();
+                }
+                rejectCounted.run();
+            }));
+            if (route != null) {
+                route.enter(newWaiter(route, enterGlobal, rejectCounted));
+            } else {
+                enterGlobal.run();
+            }
+        }
+
+        void release() {
+            global.leave();
+            if (route != null) {
+                route.leave();
+            }
+        }
+
+        /**
+         * Drops a request that is still queued, e.g. because its client went away.
+         */
+        void cancel() {
+            Waiter queued;
+            synchronized (this) {
+                cancelled = true;
+                queued = waiter;
+            }
+            if (queued != null && queued.gate.remove(queued) && queued.gate == global && route != null) {
+                route.leave();
+            }
+        }
+
+        private synchronized Waiter newWaiter(Gate gate, Runnable onEnter, Runnable onReject) {
+            waiter = new Waiter(gate, () -> {
+                boolean abandoned;
+                synchronized (this) {
+                    abandoned = cancelled;
+                    waiter = null;
+                }
+                if (!abandoned) {
+                    onEnter.run();
+                    return;
+                }
+                // Admitted after the request was abandoned: hand the slots straight back
+                gate.leave();
+                if (gate == global && route != null) {
+                    route.leave();
+                }
+            }, onReject);
+            return waiter;
+        }
+    }
+
+    private static final class Waiter {
+        final Gate gate;
+        final Runnable onEnter;
+        final Runnable onReject;
+        ScheduledFuture<?> timeout;
+
+        Waiter(Gate gate, Runnable onEnter, Runnable onReject) {
+            this.gate = gate;
+            this.onEnter = onEnter;
+            this.onReject = onReject;
+        }
+    }
+
+    private static final class Gate {
+        private final CgiLimits limits;
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        private int running;
+
+        Gate(CgiLimits limits) {
+            this.limits = limits;
+        }
+
+        void enter(Waiter waiter) {
+            boolean admitted = false;
+            synchronized (this) {
+                if (limits.getMaxConcurrent() <= 0 || running < limits.getMaxConcurrent()) {
+                    running++;
+                    admitted = true;
+                } else if (queue.size() < limits.getMaxQueue()) {
+                    queue.addLast(waiter);
+                    QUEUED.incrementAndGet();
+                    if (limits.getQueueTimeoutMs() > 0) {
+                        waiter.timeout = CgiReaper.schedule(() -> {
+                            if (remove(waiter)) {
+                                waiter.onReject.run();
+                            }
+                        }, limits.getQueueTimeoutMs());
+                    }
+                    return;
+                }
+            }
+            if (admitted) {
+                waiter.onEnter.run();
+            } else {
+                waiter.onReject.run();
+            }
+        }
+
+        void leave() {
+            Waiter next;
+            synchronized (this) {
+                next = queue.pollFirst();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+                // The slot passes straight to the oldest waiter
+                QUEUED.decrementAndGet();
+                if (next.timeout != null) {
+                    next.timeout.cancel(false);
+                }
+            }
+            next.onEnter.run();
+        }
+
+        synchronized boolean remove(Waiter waiter) {
+            if (!queue.remove(waiter)) {
+                return false;
+            }
+            QUEUED.decrementAndGet();
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+            return true;
+        }
+
+        synchronized int running() {
+            return running;
+        }
+    }
+}
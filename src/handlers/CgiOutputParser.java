@@ -0,0 +1,115 @@
+package handlers;
+
+import http.model.HttpResponse;
+import http.model.HttpStatus;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental, byte-level parser for the header block at the start of CGI output. Output
+ * is fed as it is read; the parser keeps only the header bytes, in a window of at most
+ * {@link #MAX_HEADER_BYTES}, and reports where the body starts so the caller can pass
+ * the rest through untouched. Lines may end in CRLF or a bare LF, and an empty line ends
+ * the block.
+ */
+final class CgiOutputParser {
+
+    static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final byte[] window = new byte[MAX_HEADER_BYTES];
+    private int size;
+    // Bytes since the last LF, to spot the empty line
+    private int lineLength;
+    private boolean complete;
+
+    /**
+     * Feeds output bytes until the header block ends.
+     *
+     * @return the index in {@code b} of the first body byte once the block ended within
+     *         this call, or -1 if more output is needed
+     * @throws IOException if the block does not end within {@link #MAX_HEADER_BYTES}
+     */
+    int feed(byte[] b, int off, int len) throws IOException {
+        if (complete) {
+            return off;
+        }
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\n' && (lineLength == 0 || (lineLength == 1 && window[size - 1] == '\r'))) {
+                // Drop the CR of the empty line; it is not part of any header
+                size -= lineLength;
+                complete = true;
+                return i + 1;
+            }
+            if (size == window.length) {
+                throw new IOException("CGI header block exceeds " + MAX_HEADER_BYTES + " bytes");
+            }
+            window[size++] = c;
+            lineLength = c == '\n' ? 0 : lineLength + 1;
+        }
+        return -1;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The bytes fed so far, for output that ended without a header block.
+     */
+    byte[] unparsed() {
+        return Arrays.copyOf(window, size);
+    }
+
+    /**
+     * Sets the status and headers of a completed block on {@code response}. A missing
+     * {@code Status} header means 200; an unreadable one means 500.
+     */
+    void applyTo(HttpResponse response) {
+        int statusCode = 200;
+        String statusMsg = "OK";
+
+        int lineStart = 0;
+        while (lineStart < size) {
+            int lineEnd = lineStart;
+            while (lineEnd < size && window[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && window[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            String line = new String(window, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+            lineStart = next;
+
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if ("Status".equalsIgnoreCase(name)) {
+                String[] parts = value.split("\\s+", 2);
+                try {
+                    statusCode = Integer.parseInt(parts[0]);
+                    statusMsg = parts.length > 1 ? parts[1] : statusMsg;
+                } catch (NumberFormatException e) {
+                    statusCode = 500;
+                    statusMsg = "Internal Server Error";
+                }
+            } else {
+                response.addHeader(name, value);
+            }
+        }
+
+        HttpStatus status = HttpStatus.fromCode(statusCode);
+        if (status != null) {
+            response.setStatus(status);
+        } else {
+            response.setStatusCode(statusCode);
+            response.setStatusMessage(statusMsg);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package handlers;
+
+import handlers.model.CgiLimits;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Kills CGI scripts that run past their wall-clock or CPU limit, together with every
+ * process they started. Running scripts are checked a few times per second; CPU time is
+ * summed over the script's whole process tree. Time a script spends blocked on a slow
+ * client is left out of its wall-clock, see {@link Watch#excludeStalls}.
+ */
+final class CgiReaper {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(CgiReaper.class);
+
+    private static final long CHECK_INTERVAL_MS = 200;
+
+    private static final LongAdder TIMED_OUT = Metrics.counter("cgi.timedOut");
+
+    private static final Set<Watch> WATCHED = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cgi-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.scheduleWithFixedDelay(CgiReaper::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private CgiReaper() {
+    }
+
+    /**
+     * Starts watching {@code process}. {@code onTimeout} runs just before the tree is killed.
+     * Close the returned watch once the script is done.
+     */
+    static Watch watch(ProcessHandle process, CgiLimits limits, Runnable onTimeout) {
+        Watch watch = new Watch(process, limits.getTimeoutMs(), limits.getCpuTimeoutMs(), onTimeout);
+        if (watch.timeoutMs > 0 || watch.cpuTimeoutMs > 0) {
+            WATCHED.add(watch);
+        }
+        return watch;
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return TIMER.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Kills the process and all of its descendants. Descendants are collected first, while
+     * they are still linked to the parent.
+     */
+    static void killTree(ProcessHandle process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static void check() {
+        long now = System.nanoTime();
+        for (Watch watch : WATCHED) {
+            String reason = null;
+            if (watch.timeoutMs > 0 && now - watch.startNanos - watch.stalledNanos.getAsLong()
+                    > TimeUnit.MILLISECONDS.toNanos(watch.timeoutMs)) {
+                reason = "ran longer than " + watch.timeoutMs + " ms";
+            } else if (watch.cpuTimeoutMs > 0 && cpuNanos(watch.process) - watch.cpuBaselineNanos
+                    > TimeUnit.MILLISECONDS.toNanos(watch.cpuTimeoutMs)) {
+                reason = "used more than " + watch.cpuTimeoutMs + " ms of CPU";
+            }
+            if (reason != null && WATCHED.remove(watch)) {
+                TIMED_OUT.increment();
+                logger.warn("Killing CGI process " + watch.process.pid() + ": " + reason);
+                try {
+                    watch.onTimeout.run();
+                } finally {
+                    killTree(watch.process);
+                }
+            }
+        }
+    }
+
+    private static long cpuNanos(ProcessHandle process) {
+        long total = cpuNanosOf(process);
+        for (ProcessHandle child : (Iterable<ProcessHandle>) process.descendants()::iterator) {
+            total += cpuNanosOf(child);
+        }
+        return total;
+    }
+
+    private static long cpuNanosOf(ProcessHandle process) {
+        return process.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+    }
+
+    static final class Watch implements AutoCloseable {
+        private final ProcessHandle process;
+        private final long timeoutMs;
+        private final long cpuTimeoutMs;
+        private final Runnable onTimeout;
+        private final long startNanos = System.nanoTime();
+        // A pooled worker has CPU time from earlier requests; only this request's share counts
+        private final long cpuBaselineNanos;
+        private volatile LongSupplier stalledNanos = () -> 0;
+
+        private Watch(ProcessHandle process, long timeoutMs, long cpuTimeoutMs, Runnable onTimeout) {
+            this.process = process;
+            this.timeoutMs = timeoutMs;
+            this.cpuTimeoutMs = cpuTimeoutMs;
+            this.onTimeout = onTimeout;
+            this.cpuBaselineNanos = cpuTimeoutMs > 0 ? cpuNanos(process) : 0;
+        }
+
+        /**
+         * Leaves out of the wall-clock the time reported by {@code stalledNanos}: the time
+         * the script's output sat waiting on the client rather than on the script.
+         */
+        void excludeStalls(LongSupplier stalledNanos) {
+            this.stalledNanos = stalledNanos;
+        }
+
+        @Override
+        public void close() {
+            WATCHED.remove(this);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package handlers;
+
+import config.model.WebServerConfig.ServerBlock;
+import handlers.model.Cgi;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import routing.model.Route;
+import util.SonicLogger;
+
+/**
+ * Index of the scripts under each CGI route's {@code binDir}. The directory is scanned
+ * once and every runnable script is stored with its canonical path and interpreter, so
+ * a request costs a map lookup instead of path canonicalization and file checks. A
+ * {@link WatchService} thread rescans a directory once changes to it have settled for
+ * {@link #SETTLE_MS}, and swaps the new map in; lookups keep using the previous one
+ * meanwhile and never scan themselves. Until then a removed script may still be found
+ * and fail to start, and a new one is found by a direct check on its first lookup.
+ */
+public final class CgiScripts {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(CgiScripts.class);
+
+    // Deep enough for any sane script tree, shallow enough to stop runaway symlink chains
+    private static final int MAX_DEPTH = 16;
+    // A burst of changes, such as a deploy copying many files, is rescanned once
+    private static final long SETTLE_MS = 100;
+
+    // Cgi does not override equals, so each configured route gets its own index
+    private static final Map<Cgi, Index> INDEXES = new ConcurrentHashMap<>();
+    private static final Map<WatchKey, Index> WATCHED = new ConcurrentHashMap<>();
+    // Indexes first looked up after startup, waiting for their initial scan
+    private static final BlockingQueue<Index> UNSCANNED = new LinkedBlockingQueue<>();
+    private static final WatchService WATCHER = openWatcher();
+
+    private CgiScripts() {
+    }
+
+    /**
+     * A script ready to run: its canonical file and the interpreter for its extension.
+     */
+    static final class Script {
+        final File file;
+        final String path;
+        final String extension;
+        final String interpreter;
+
+        private Script(File file, String extension, String interpreter) {
+            this.file = file;
+            this.path = file.getPath();
+            this.extension = extension;
+            this.interpreter = interpreter;
+        }
+    }
+
+    /**
+     * Scans the script directory of every CGI route, so the first requests find a ready index.
+     */
+    public static void prepare(Collection<ServerBlock> servers) {
+        for (ServerBlock server : servers) {
+            if (server.getRoutes() == null) continue;
+            for (Route route : server.getRoutes()) {
+                if (route.isCgiEnabled()) {
+                    INDEXES.computeIfAbsent(route.getCgi(), Index::new).rescan();
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves a script path relative to the route's {@code binDir}.
+     *
+     * @return the script, or null if there is no runnable script at that path
+     */
+    static Script resolve(Cgi cgi, String relativePath) {
+        String key;
+        try {
+            Path normalized = Path.of(relativePath).normalize();
+            if (normalized.isAbsolute() || normalized.startsWith("..")) {
+                return null;
+            }
+            key = normalized.toString();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return INDEXES.computeIfAbsent(cgi, Index::new).lookup(key);
+    }
+
+    public static void shutdown() {
+        if (WATCHER != null) {
+            try {
+                WATCHER.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close CGI script watcher: " + e.getMessage());
+            }
+        }
+    }
+
+    private static WatchService openWatcher() {
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            Thread thread = new Thread(() -> watch(watcher), "cgi-script-watch");
+            thread.setDaemon(true);
+            thread.start();
+            return watcher;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("CGI script directories cannot be watched; scripts are resolved per request");
+            return null;
+        }
+    }
+
+    /**
+     * Collects changed indexes until the directories have been quiet for {@link #SETTLE_MS},
+     * then rescans them here, off the request path.
+     */
+    private static void watch(WatchService watcher) {
+        Set<Index> changed = new LinkedHashSet<>();
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    Index index = WATCHED.get(key);
+                    if (index != null) {
+                        changed.add(index);
+                    }
+                    if (!key.reset()) {
+                        WATCHED.remove(key);
+                    }
+                    continue;
+                }
+                UNSCANNED.drainTo(changed);
+                for (Index index : changed) {
+                    index.rescan();
+                }
+                changed.clear();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    private static final class Index {
+        private final Cgi cgi;
+        private final File binDir;
+        // Replaced whole by each scan; null until the first one
+        private volatile Map<String, Script> scripts;
+        private volatile boolean scanRequested;
+
+        Index(Cgi cgi) {
+            this.cgi = cgi;
+            this.binDir = new File(cgi.getBinDir());
+        }
+
+        Script lookup(String key) {
+            Map<String, Script> current = scripts;
+            if (current == null) {
+                if (WATCHER != null && !scanRequested) {
+                    scanRequested = true;
+                    UNSCANNED.offer(this);
+                }
+                return resolveDirectly(key);
+            }
+            Script script = current.get(key);
+            if (script == null) {
+                // The watcher may not have reported a just-created script yet
+                script = resolveDirectly(key);
+                if (script != null) {
+                    current.put(key, script);
+                }
+            }
+            return script;
+        }
+
+        /**
+         * Scans the directory and publishes the result. Runs at startup and on the watcher
+         * thread, never per request. Without a watcher the directory is not indexed at all,
+         * since nothing would keep the index current.
+         */
+        synchronized void rescan() {
+            if (WATCHER != null) {
+                scripts = scan();
+            }
+        }
+
+        private Map<String, Script> scan() {
+            Map<String, Script> found = new ConcurrentHashMap<>();
+            Path root;
+            try {
+                root = binDir.getCanonicalFile().toPath();
+            } catch (IOException e) {
+                logger.warn("Cannot index CGI directory " + binDir + ": " + e.getMessage());
+                return found;
+            }
+            if (!Files.isDirectory(root)) {
+                return found;
+            }
+            try {
+                Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), MAX_DEPTH,
+                        new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        register(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            Script script = toScript(root, file.toFile());
+                            if (script != null) {
+                                found.put(root.relativize(file).toString(), script);
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logger.warn("Failed to index CGI directory " + binDir + ": " + e.getMessage());
+            }
+            return found;
+        }
+
+        private void register(Path dir) throws IOException {
+            WATCHED.put(dir.register(WATCHER, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), this);
+        }
+
+        private Script resolveDirectly(String key) {
+            try {
+                Path root = binDir.getCanonicalFile().toPath();
+                File file = new File(binDir, key).getCanonicalFile();
+                if (!file.isFile()) {
+                    return null;
+                }
+                return toScript(root, file);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Builds the script for a file, or null if it leaves {@code root} once symlinks are
+         * resolved or its extension has no interpreter.
+         */
+        private Script toScript(Path root, File file) {
+            File canonical;
+            try {
+                canonical = file.getCanonicalFile();
+            } catch (IOException e) {
+                return null;
+            }
+            if (!canonical.toPath().startsWith(root)) {
+                return null;
+            }
+            String name = canonical.getName();
+            int dot = name.lastIndexOf('.');
+            String extension = dot >= 0 ? name.substring(dot).toLowerCase(Locale.ROOT) : "";
+            String interpreter = cgi.getInterpreterForExtension(extension);
+            if (interpreter == null || interpreter.isEmpty()) {
+                return null;
+            }
+            return new Script(canonical, extension, interpreter);
+        }
+    }
+}
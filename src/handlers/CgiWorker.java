@@ -0,0 +1,221 @@
+package handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * One persistent interpreter process that runs CGI scripts in-process, speaking a framed
+ * protocol over its stdin and stdout (all integers big-endian):
+ *
+ * <pre>
+ * request:  u32 envLength, env as NUL-separated KEY=VALUE pairs, u64 bodyLength, body
+ * response: (u32 chunkLength &gt; 0, chunk)*, u32 0, i32 exitStatus
+ * </pre>
+ *
+ * Output arrives in chunks while the script runs, so it streams with the pipe as the only
+ * buffer and the exit status is known once the output has been read to the end. An
+ * empty environment is a ping and is answered with no output and status 0. The
+ * worker's stderr goes to the server's stderr. Not thread-safe; the pool hands a worker
+ * to one request at a time.
+ */
+final class CgiWorker {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private int requests;
+    private long lastUsedMs;
+    private long chunkRemaining;
+    private boolean outputDone = true;
+    private int exitStatus;
+    private CompletableFuture<Void> bodySent = CompletableFuture.completedFuture(null);
+
+    private final InputStream output = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (outputDone) {
+                return -1;
+            }
+            while (chunkRemaining == 0) {
+                int next = in.readInt();
+                if (next == 0) {
+                    exitStatus = in.readInt();
+                    outputDone = true;
+                    lastUsedMs = System.currentTimeMillis();
+                    return -1;
+                }
+                if (next < 0) {
+                    throw new IOException("Malformed output frame from worker");
+                }
+                chunkRemaining = next;
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) {
+                throw new IOException("Worker exited mid-response");
+            }
+            chunkRemaining -= n;
+            return n;
+        }
+    };
+
+    private CgiWorker(Process process) {
+        this.process = process;
+        this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), BUFFER_SIZE));
+        this.in = new DataInputStream(new BufferedInputStream(process.getInputStream(), BUFFER_SIZE));
+        this.lastUsedMs = System.currentTimeMillis();
+    }
+
+    static CgiWorker start(List<String> command, File directory) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(directory).redirectError(ProcessBuilder.Redirect.INHERIT);
+        return new CgiWorker(pb.start());
+    }
+
+    /**
+     * Sends one request; its output is then read from {@link #output()}. The request body
+     * ({@code bodyLength} bytes of {@code body}) is written on {@code executor} while the
+     * caller reads, so a script that answers before reading all of its input cannot
+     * deadlock on a full pipe.
+     */
+    void send(Map<String, String> env, InputStream body, long bodyLength, Executor executor) throws IOException {
+        requests++;
+        chunkRemaining = 0;
+        outputDone = false;
+        writeEnv(env);
+        out.writeLong(bodyLength);
+        if (body == null || bodyLength == 0) {
+            out.flush();
+            bodySent = CompletableFuture.completedFuture(null);
+            return;
+        }
+        bodySent = CompletableFuture.runAsync(() -> {
+            try {
+                long copied = body.transferTo(out);
+                if (copied != bodyLength) {
+                    throw new IOException("Request body length changed while sending to worker");
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * The current response's output, ending at the worker's end-of-output frame.
+     */
+    InputStream output() {
+        return output;
+    }
+
+    /**
+     * The script's exit status, known once {@link #output()} was read to the end.
+     */
+    int exitStatus() {
+        if (!outputDone) {
+            throw new IllegalStateException("Output not read to the end");
+        }
+        return exitStatus;
+    }
+
+    /**
+     * True once the current output was read to the end and the request body fully sent,
+     * so the worker can take the next request.
+     */
+    boolean isOutputConsumed() {
+        if (!outputDone) {
+            return false;
+        }
+        try {
+            // The worker reads the whole body before it ends its output, so this is immediate
+            bodySent.join();
+            return true;
+        } catch (CompletionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a ping and waits up to {@code timeoutMs} for the answer.
+     */
+    boolean ping(long timeoutMs) {
+        if (!process.isAlive()) {
+            return false;
+        }
+        try {
+            out.writeInt(0);
+            out.writeLong(0);
+            out.flush();
+
+            // Poll instead of blocking so a hung worker cannot stall the health check
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (in.available() < 2 * Integer.BYTES) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(5);
+            }
+            return in.readInt() == 0 && in.readInt() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    ProcessHandle handle() {
+        return process.toHandle();
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    int getRequests() {
+        return requests;
+    }
+
+    long getLastUsedMs() {
+        return lastUsedMs;
+    }
+
+    void destroy() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // The worker exits on EOF; a broken pipe means it is already gone
+        }
+        process.destroy();
+    }
+
+    private void writeEnv(Map<String, String> env) throws IOException {
+        StringBuilder sb = new StringBuilder(512);
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\0');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,271 @@
+package handlers;
+
+import config.model.WebServerConfig.ServerBlock;
+import handlers.model.Cgi;
+import handlers.model.CgiWorkers;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import routing.model.Route;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Pool of {@link CgiWorker}s for one route's worker settings and one script extension.
+ *
+ * Between {@code min} and {@code max} workers are kept; a request takes the most recently
+ * used idle worker, or starts one while under {@code max}, or waits up to
+ * {@code acquireTimeoutMs}. Workers are replaced after {@code maxRequests} requests or any
+ * failure. A background check pings idle workers every {@code healthCheckMs}, drops those
+ * that do not answer and tops the pool back up to {@code min}.
+ */
+public final class CgiWorkerPool {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(CgiWorkerPool.class);
+
+    private static final long PING_TIMEOUT_MS = 2_000;
+
+    private static final LongAdder SPAWNED = Metrics.counter("cgiWorkers.spawned");
+    private static final LongAdder RETIRED = Metrics.counter("cgiWorkers.retired");
+    private static final LongAdder UNHEALTHY = Metrics.counter("cgiWorkers.unhealthy");
+
+    // Worker settings do not override equals, so each configured route gets its own pools
+    private static final Map<CgiWorkers, Map<String, CgiWorkerPool>> POOLS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cgi-worker-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final List<String> command;
+    private final CgiWorkers cfg;
+    private final ArrayDeque<CgiWorker> idle = new ArrayDeque<>();
+    // Idle, busy and starting workers
+    private int total;
+    private boolean closed;
+
+    private CgiWorkerPool(String name, List<String> command, CgiWorkers cfg) {
+        this.name = name;
+        this.command = command;
+        this.cfg = cfg;
+    }
+
+    /**
+     * Returns the pool for a script extension, or null when the route has no launcher for it.
+     */
+    static CgiWorkerPool forExtension(Cgi cgi, String extension) {
+        CgiWorkers workers = cgi.getWorkers();
+        if (workers == null) {
+            return null;
+        }
+        String launcher = workers.getLauncherForExtension(extension);
+        String interpreter = cgi.getInterpreterForExtension(extension);
+        if (launcher == null || interpreter == null || interpreter.isEmpty()) {
+            return null;
+        }
+
+        return POOLS.computeIfAbsent(workers, w -> new ConcurrentHashMap<>())
+                .computeIfAbsent(extension, ext -> {
+                    String launcherPath = new File(launcher).toPath().toAbsolutePath().normalize().toString();
+                    List<String> command = List.of(interpreter, launcherPath);
+                    CgiWorkerPool pool = new CgiWorkerPool(launcher, command, workers);
+                    pool.start();
+                    return pool;
+                });
+    }
+
+    /**
+     * Starts the minimum number of workers for every worker-enabled CGI route, so the first
+     * requests do not pay interpreter startup.
+     */
+    public static void prestart(Collection<ServerBlock> servers) {
+        for (ServerBlock server : servers) {
+            if (server.getRoutes() == null) continue;
+            for (Route route : server.getRoutes()) {
+                if (!route.isCgiEnabled() || route.getCgi().getWorkers() == null
+                        || !route.getCgi().getWorkers().isEnabled()
+                        || route.getCgi().getWorkers().getByExtension() == null) {
+                    continue;
+                }
+                for (String extension : route.getCgi().getWorkers().getByExtension().keySet()) {
+                    forExtension(route.getCgi(), extension.toLowerCase());
+                }
+            }
+        }
+    }
+
+    public static void shutdownAll() {
+        MAINTENANCE.shutdownNow();
+        for (Map<String, CgiWorkerPool> pools : POOLS.values()) {
+            for (CgiWorkerPool pool : pools.values()) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Takes a worker, starting one if the pool is below {@code max}.
+     *
+     * @return the worker, or null if none became free within {@code acquireTimeoutMs}
+     */
+    CgiWorker acquire() throws IOException {
+        long deadline = System.currentTimeMillis() + cfg.getAcquireTimeoutMs();
+        synchronized (this) {
+            while (true) {
+                CgiWorker worker;
+                while ((worker = idle.pollFirst()) != null) {
+                    if (worker.isAlive()) {
+                        return worker;
+                    }
+                    total--;
+                    worker.destroy();
+                }
+                if (closed) {
+                    return null;
+                }
+                if (total < cfg.getMax()) {
+                    total++;
+                    break;
+                }
+                long waitMs = deadline - System.currentTimeMillis();
+                if (waitMs <= 0) {
+                    return null;
+                }
+                try {
+                    wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        try {
+            return spawn();
+        } catch (IOException e) {
+            synchronized (this) {
+                total--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a worker after a request. Workers that failed mid-request or reached
+     * {@code maxRequests} are replaced in the background.
+     */
+    void release(CgiWorker worker, boolean reusable) {
+        boolean retire = !reusable || !worker.isAlive()
+                || (cfg.getMaxRequests() > 0 && worker.getRequests() >= cfg.getMaxRequests());
+
+        boolean replace;
+        synchronized (this) {
+            if (!retire && !closed) {
+                idle.addFirst(worker);
+                notifyAll();
+                return;
+            }
+            total--;
+            replace = !closed;
+            notifyAll();
+        }
+
+        worker.destroy();
+        RETIRED.increment();
+        if (replace) {
+            MAINTENANCE.execute(this::fill);
+        }
+    }
+
+    private void start() {
+        MAINTENANCE.execute(this::fill);
+        if (cfg.getHealthCheckMs() > 0) {
+            MAINTENANCE.scheduleWithFixedDelay(this::checkHealth,
+                    cfg.getHealthCheckMs(), cfg.getHealthCheckMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private CgiWorker spawn() throws IOException {
+        CgiWorker worker = CgiWorker.start(command, new File("."));
+        SPAWNED.increment();
+        return worker;
+    }
+
+    private void fill() {
+        while (true) {
+            synchronized (this) {
+                if (closed || total >= cfg.getMin()) {
+                    return;
+                }
+                total++;
+            }
+            try {
+                CgiWorker worker = spawn();
+                synchronized (this) {
+                    idle.addLast(worker);
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    total--;
+                }
+                logger.error("Cannot start CGI worker " + name + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void checkHealth() {
+        List<CgiWorker> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(idle);
+        }
+
+        for (CgiWorker worker : snapshot) {
+            synchronized (this) {
+                // Skip workers a request took in the meantime
+                if (!idle.remove(worker)) continue;
+            }
+            if (worker.ping(PING_TIMEOUT_MS)) {
+                synchronized (this) {
+                    idle.addLast(worker);
+                    notifyAll();
+                }
+            } else {
+                logger.warn("CGI worker " + name + " failed its health check, replacing it");
+                UNHEALTHY.increment();
+                worker.destroy();
+                synchronized (this) {
+                    total--;
+                    notifyAll();
+                }
+            }
+        }
+        fill();
+    }
+
+    private void close() {
+        List<CgiWorker> workers;
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (CgiWorker worker : workers) {
+            worker.destroy();
+        }
+    }
+}
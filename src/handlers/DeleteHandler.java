@@ -12,7 +12,7 @@ import routing.model.Route;
 public class DeleteHandler {
 
     
-    private final ErrorHandler errorHandler = new ErrorHandler();
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
     
     /**
      * Handle DELETE requests.
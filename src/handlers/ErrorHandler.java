@@ -1,42 +1,143 @@
 package handlers;
 
 import config.model.WebServerConfig.ServerBlock;
- import http.model.HttpResponse;
+import http.model.HttpResponse;
 import http.model.HttpStatus;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import util.SonicLogger;
 
+/**
+ * Builds error responses from pages loaded once per server block, so an error costs a
+ * map lookup and a small header copy instead of a stat and a file read. The body bytes
+ * are shared by every response for that status and must not be modified.
+ */
 public class ErrorHandler {
 
-    public HttpResponse handle(ServerBlock server,  HttpStatus status) {
+    private static final SonicLogger logger = SonicLogger.getLogger(ErrorHandler.class);
+    private static final ErrorHandler INSTANCE = new ErrorHandler();
+
+    // Plain-text pages for every status, used when a block configures no page
+    private static final Map<Integer, ErrorPage> FALLBACK_PAGES = new HashMap<>();
+
+    static {
+        for (HttpStatus status : HttpStatus.values()) {
+            byte[] body = (status.code + " " + status.message).getBytes(StandardCharsets.UTF_8);
+            FALLBACK_PAGES.put(status.code, new ErrorPage(body, "text/plain; charset=UTF-8"));
+        }
+    }
+
+    // Replaced wholesale on (re)load; readers never see a partially built table
+    private volatile Map<ServerBlock, Map<Integer, ErrorPage>> pagesByServer = Collections.emptyMap();
+
+    private ErrorHandler() {
+    }
+
+    public static ErrorHandler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads the configured error pages of every block. Call at startup and after the
+     * configuration is reloaded; the previous pages stay in use until the new table is ready.
+     */
+    public void preload(Collection<ServerBlock> servers) {
+        Map<ServerBlock, Map<Integer, ErrorPage>> loaded = new IdentityHashMap<>();
+        int count = 0;
+        for (ServerBlock server : servers) {
+            Map<Integer, ErrorPage> pages = loadPages(server);
+            loaded.put(server, pages);
+            count += pages.size();
+        }
+        pagesByServer = Collections.unmodifiableMap(loaded);
+        logger.info("Loaded " + count + " error page(s) for " + servers.size() + " server block(s)");
+    }
+
+    public HttpResponse handle(ServerBlock server, HttpStatus status) {
+        ErrorPage page = lookup(server, status.code);
+
         HttpResponse response = new HttpResponse();
         response.setStatus(status);
+        response.setBody(page.body);
+        response.addHeader("Content-Type", page.contentType);
+        response.addHeader("Content-Length", page.contentLength);
+        return response;
+    }
 
-        String errorPagePath = null;
-        if (server != null && server.getErrorPages() != null) {
-            errorPagePath = server.getErrorPages().get(String.valueOf(status.code));
+    private ErrorPage lookup(ServerBlock server, int code) {
+        if (server != null) {
+            Map<Integer, ErrorPage> pages = pagesByServer.get(server);
+            if (pages == null) {
+                // Block created after the last preload; load it once and keep it
+                pages = loadServer(server);
+            }
+            ErrorPage page = pages.get(code);
+            if (page != null) {
+                return page;
+            }
+        }
+        return FALLBACK_PAGES.get(code);
+    }
+
+    private synchronized Map<Integer, ErrorPage> loadServer(ServerBlock server) {
+        Map<Integer, ErrorPage> pages = pagesByServer.get(server);
+        if (pages != null) {
+            return pages;
+        }
+        pages = loadPages(server);
+        Map<ServerBlock, Map<Integer, ErrorPage>> updated = new IdentityHashMap<>(pagesByServer);
+        updated.put(server, pages);
+        pagesByServer = Collections.unmodifiableMap(updated);
+        return pages;
+    }
+
+    private static Map<Integer, ErrorPage> loadPages(ServerBlock server) {
+        Map<Integer, ErrorPage> pages = new HashMap<>();
+        if (server.getErrorPages() == null) {
+            return pages;
         }
 
-        if (errorPagePath != null) {
-            File file = new File(errorPagePath);
-            if (file.exists() && !file.isDirectory()) {
-                try {
-                    byte[] content = Files.readAllBytes(file.toPath());
-                    response.setBody(content);
-                    response.addHeader("Content-Type", "text/html; charset=UTF-8");
-                    response.addHeader("Content-Length", String.valueOf(content.length));
-                    return response;
-                } catch (IOException ignored) {
-                }
+        for (Map.Entry<String, String> entry : server.getErrorPages().entrySet()) {
+            int code;
+            try {
+                code = Integer.parseInt(entry.getKey().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring error page with invalid status: " + entry.getKey());
+                continue;
+            }
+
+            Path file = Paths.get(entry.getValue());
+            if (!Files.isRegularFile(file)) {
+                logger.warn("Error page not found for " + code + ": " + file);
+                continue;
+            }
+            try {
+                pages.put(code, new ErrorPage(Files.readAllBytes(file), "text/html; charset=UTF-8"));
+            } catch (IOException e) {
+                logger.warn("Cannot read error page " + file + ": " + e.getMessage());
             }
         }
+        return Map.copyOf(pages);
+    }
 
-        String fallbackBody = status.code + " " + status.message;
-        response.setBody(fallbackBody.getBytes());
-        response.addHeader("Content-Type", "text/plain; charset=UTF-8");
-        response.addHeader("Content-Length", String.valueOf(fallbackBody.length()));
-        return response;
+    private static final class ErrorPage {
+        private final byte[] body;
+        private final String contentType;
+        private final String contentLength;
+
+        private ErrorPage(byte[] body, String contentType) {
+            this.body = body;
+            this.contentType = contentType;
+            this.contentLength = String.valueOf(body.length);
+        }
     }
 }
@@ -0,0 +1,142 @@
+package handlers;
+
+import config.model.WebServerConfig.ServerBlock;
+import handlers.spi.RequestHandler;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import routing.model.Route;
+import util.SonicLogger;
+
+/**
+ * The in-process {@link RequestHandler}s known to the server, by name. Handlers are found
+ * with {@link ServiceLoader} on the server's classpath and in every JAR of the configured
+ * directory, which get one class loader of their own.
+ */
+public final class HandlerRegistry {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(HandlerRegistry.class);
+    private static final HandlerRegistry INSTANCE = new HandlerRegistry();
+
+    private volatile Map<String, RequestHandler> handlers = Map.of();
+    private URLClassLoader jarLoader;
+
+    private HandlerRegistry() {
+    }
+
+    public static HandlerRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Loads and initialises the handlers, then warns about routes that mount a name no
+     * handler answers to. {@code dir} may be null when only the classpath is used.
+     */
+    public void load(String dir, Collection<ServerBlock> servers) {
+        ClassLoader loader = RequestHandler.class.getClassLoader();
+        URL[] jars = findJars(dir);
+        if (jars.length > 0) {
+            jarLoader = new URLClassLoader(jars, loader);
+            loader = jarLoader;
+        }
+
+        Map<String, RequestHandler> loaded = new LinkedHashMap<>();
+        Iterator<RequestHandler> it = ServiceLoader.load(RequestHandler.class, loader).iterator();
+        while (true) {
+            RequestHandler handler;
+            try {
+                if (!it.hasNext()) break;
+                handler = it.next();
+            } catch (ServiceConfigurationError e) {
+                logger.error("Cannot load request handler: " + e.getMessage());
+                continue;
+            }
+
+            String name = handler.name();
+            if (name == null || name.isEmpty()) {
+                logger.error("Request handler " + handler.getClass().getName() + " has no name, skipping");
+                continue;
+            }
+            if (loaded.containsKey(name)) {
+                logger.warn("Duplicate request handler '" + name + "' in " + handler.getClass().getName()
+                        + ", keeping " + loaded.get(name).getClass().getName());
+                continue;
+            }
+            try {
+                handler.init();
+                loaded.put(name, handler);
+            } catch (Exception e) {
+                logger.error("Request handler '" + name + "' failed to initialise", e);
+            }
+        }
+        handlers = Map.copyOf(loaded);
+        if (!loaded.isEmpty()) {
+            logger.info("Loaded request handlers: " + loaded.keySet());
+        }
+
+        for (ServerBlock server : servers) {
+            if (server.getRoutes() == null) continue;
+            for (Route route : server.getRoutes()) {
+                if (route.isHandlerMounted() && !handlers.containsKey(route.getHandler().getName())) {
+                    logger.warn("Route '" + route.getPath() + "' of server '" + server.getName()
+                            + "' mounts unknown request handler '" + route.getHandler().getName() + "'");
+                }
+            }
+        }
+    }
+
+    RequestHandler find(String name) {
+        return handlers.get(name);
+    }
+
+    public void destroyAll() {
+        for (RequestHandler handler : handlers.values()) {
+            try {
+                handler.destroy();
+            } catch (RuntimeException e) {
+                logger.error("Request handler '" + handler.name() + "' failed to shut down", e);
+            }
+        }
+        handlers = Map.of();
+        if (jarLoader != null) {
+            try {
+                jarLoader.close();
+            } catch (IOException e) {
+                logger.error("Error closing handler class loader", e);
+            }
+            jarLoader = null;
+        }
+    }
+
+    private static URL[] findJars(String dir) {
+        if (dir == null || dir.isEmpty()) {
+            return new URL[0];
+        }
+        File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".jar"));
+        if (files == null) {
+            logger.warn("Request handler directory not found: " + dir);
+            return new URL[0];
+        }
+        Arrays.sort(files);
+        List<URL> urls = new ArrayList<>();
+        for (File file : files) {
+            try {
+                urls.add(file.toURI().toURL());
+            } catch (MalformedURLException e) {
+                logger.error("Skipping handler JAR " + file + ": " + e.getMessage());
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+}
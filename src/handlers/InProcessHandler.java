@@ -0,0 +1,106 @@
+package handlers;
+
+import config.model.WebServerConfig.ServerBlock;
+import handlers.model.HandlerMount;
+import handlers.spi.RequestHandler;
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+import http.model.HttpStatus;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import routing.model.Route;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Runs the {@link RequestHandler} mounted on a route on a fixed worker pool and answers
+ * with a deferred response. A handler that is still running when the route's timeout
+ * expires is interrupted and the client gets 504.
+ */
+public class InProcessHandler {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(InProcessHandler.class);
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final LongAdder TIMEOUTS = Metrics.counter("requestHandlers.timeouts");
+    private static final LongAdder FAILURES = Metrics.counter("requestHandlers.failures");
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "request-handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
+    private final HandlerRegistry registry = HandlerRegistry.getInstance();
+
+    public HttpResponse handle(HttpRequest request, ServerBlock server, Route route) {
+        HandlerMount mount = route.getHandler();
+        RequestHandler handler = registry.find(mount.getName());
+        if (handler == null) {
+            logger.error("No request handler named '" + mount.getName() + "' for " + request.getPath());
+            return errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        Future<?> task = WORKERS.submit(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            HttpResponse response;
+            try {
+                response = handler.handle(request);
+                if (response == null || response.isDeferred()) {
+                    throw new IllegalStateException("Handler returned no response");
+                }
+            } catch (InterruptedException e) {
+                // Timed out or abandoned; the future is already settled
+                return;
+            } catch (Exception | LinkageError e) {
+                FAILURES.increment();
+                logger.error("Request handler '" + mount.getName() + "' failed on " + request.getPath(), e);
+                future.complete(errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR));
+                return;
+            }
+            if (!future.complete(response)) {
+                discard(response);
+            }
+        });
+
+        if (mount.getTimeoutMs() > 0) {
+            CompletableFuture.delayedExecutor(mount.getTimeoutMs(), TimeUnit.MILLISECONDS).execute(() -> {
+                if (future.complete(errorHandler.handle(server, HttpStatus.GATEWAY_TIMEOUT))) {
+                    TIMEOUTS.increment();
+                    logger.warn("Request handler '" + mount.getName() + "' timed out after "
+                            + mount.getTimeoutMs() + " ms on " + request.getPath());
+                }
+            });
+        }
+        // Stops a handler that is still running once nobody waits for it
+        future.whenComplete((response, e) -> task.cancel(true));
+        return HttpResponse.deferred(future);
+    }
+
+    private static void discard(HttpResponse response) {
+        if (response.isStreaming()) {
+            try {
+                response.getStreamBody().close();
+            } catch (IOException e) {
+                logger.error("Error closing abandoned response body", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package handlers;
+
+import config.model.WebServerConfig.ServerBlock;
+import handlers.UpstreamGroup.Connection;
+import handlers.UpstreamGroup.Upstream;
+import http.PipedBody;
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+import http.model.HttpStatus;
+import http.model.ResponseBody;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import routing.model.Route;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * Forwards requests to the backends of a proxy route over pooled HTTP/1.1 keep-alive
+ * connections. Upstream I/O runs on its own threads and the response comes back as a
+ * deferred response, so the event loop never waits on a backend. Request bodies are
+ * passed on while they arrive; response bodies up to {@link #BUFFERED_BYTES} with a known
+ * length are answered whole, anything else is streamed to the client with backpressure.
+ *
+ * A backend that cannot be connected to is skipped for the next one. A request that
+ * fails on a reused connection before any response byte arrived is retried once on a
+ * fresh one, when it is idempotent and its body can be sent again.
+ */
+public class ProxyHandler {
+    private static final SonicLogger logger = SonicLogger.getLogger(ProxyHandler.class);
+
+    private static final int BUFFERED_BYTES = ResponseBody.MAX_BUFFERED_BYTES;
+    private static final int PIPE_CAPACITY = 64 * 1024;
+    private static final int STREAM_CHUNK_BYTES = 16 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    // Meaningful only for a single connection, never forwarded in either direction
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "te", "trailer", "upgrade", "proxy-authenticate", "proxy-authorization");
+    private static final Set<String> IDEMPOTENT = Set.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+
+    // One thread per exchange in progress, blocking on the upstream socket instead of on the event loop
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "proxy-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final LongAdder REQUESTS = Metrics.counter("proxy.requests");
+    private static final LongAdder FAILURES = Metrics.counter("proxy.failures");
+    private static final LongAdder RETRIES = Metrics.counter("proxy.staleRetries");
+
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
+
+    public HttpResponse handle(HttpRequest request, ServerBlock server, Route route) {
+        UpstreamGroup group = UpstreamGroup.forProxy(route.getProxy());
+        // Built here, on the event loop, while the client connection is still at hand
+        byte[] head = requestHead(request, server);
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        EXECUTOR.execute(() -> {
+            try {
+                forward(future, request, head, server, group);
+            } catch (RuntimeException e) {
+                logger.error("Proxying " + request.getPath() + " failed", e);
+                fail(future, server, HttpStatus.BAD_GATEWAY);
+            } finally {
+                RequestBodies.close(request);
+            }
+        });
+        return HttpResponse.deferred(future);
+    }
+
+    private void forward(CompletableFuture<HttpResponse> future, HttpRequest request, byte[] head,
+            ServerBlock server, UpstreamGroup group) {
+        REQUESTS.increment();
+        boolean retryable = request.getBodyPipe() == null && IDEMPOTENT.contains(request.getMethod());
+        Set<Upstream> tried = new HashSet<>();
+        Upstream upstream = null;
+        boolean sameUpstream = false;
+
+        while (!future.isDone()) {
+            if (!sameUpstream) {
+                upstream = group.choose(tried);
+                if (upstream == null) {
+                    fail(future, server, HttpStatus.BAD_GATEWAY);
+                    return;
+                }
+                tried.add(upstream);
+            }
+
+            Connection connection;
+            try {
+                connection = upstream.acquire();
+            } catch (IOException e) {
+                // Nothing was sent, so any request may move on to the next upstream
+                logger.warn("Cannot connect to upstream " + upstream.name() + ": " + e.getMessage());
+                upstream.markFailure();
+                sameUpstream = false;
+                continue;
+            }
+
+            boolean stale = exchange(future, request, head, server, upstream, connection,
+                    retryable && connection.reused && !sameUpstream);
+            if (!stale) {
+                return;
+            }
+            RETRIES.increment();
+            sameUpstream = true;
+        }
+    }
+
+    /**
+     * Sends the request on {@code connection} and completes {@code future} with the answer.
+     *
+     * @return true if the connection turned out to be closed by the upstream while idle
+     *         and the request should be retried on a fresh one
+     */
+    private boolean exchange(CompletableFuture<HttpResponse> future, HttpRequest request, byte[] head,
+            ServerBlock server, Upstream upstream, Connection connection, boolean mayRetry) {
+        // Whoever flips this first owns the connection: the exchange, or a cancellation closing it
+        AtomicBoolean owned = new AtomicBoolean(true);
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled() && owned.compareAndSet(true, false)) {
+                connection.close();
+            }
+        });
+
+        ResponseHead response;
+        try {
+            connection.out.write(head);
+            sendBody(connection.out, request);
+            connection.out.flush();
+            response = readHead(connection.in);
+        } catch (ClientGoneException e) {
+            release(owned, upstream, connection, false);
+            fail(future, server, HttpStatus.BAD_REQUEST);
+            return false;
+        } catch (IOException e) {
+            release(owned, upstream, connection, false);
+            if (future.isDone()) {
+                return false;
+            }
+            if (mayRetry && !(e instanceof SocketTimeoutException) && !(e instanceof MalformedResponseException)) {
+                return true;
+            }
+            upstream.markFailure();
+            logger.warn("Upstream " + upstream.name() + " failed on " + request.getPath() + ": " + e.getMessage());
+            fail(future, server, e instanceof SocketTimeoutException ? HttpStatus.GATEWAY_TIMEOUT : HttpStatus.BAD_GATEWAY);
+            return false;
+        }
+        upstream.markSuccess();
+
+        HttpResponse result = new HttpResponse();
+        HttpStatus status = HttpStatus.fromCode(response.status);
+        if (status != null) {
+            result.setStatus(status);
+        } else {
+            result.setStatusCode(response.status);
+            result.setStatusMessage(response.reason);
+        }
+        copyHeaders(response, result);
+
+        boolean reusable = response.keepAlive;
+        InputStream body;
+        long length;
+        if ("HEAD".equals(request.getMethod()) || response.status == 204 || response.status == 304) {
+            body = InputStream.nullInputStream();
+            length = 0;
+        } else if (response.chunked) {
+            body = new ChunkedInputStream(connection.in);
+            length = ResponseBody.UNKNOWN_LENGTH;
+        } else if (response.contentLength >= 0) {
+            body = new FixedLengthInputStream(connection.in, response.contentLength);
+            length = response.contentLength;
+        } else {
+            // Delimited by the upstream closing the connection
+            body = connection.in;
+            length = ResponseBody.UNKNOWN_LENGTH;
+            reusable = false;
+        }
+
+        if (length >= 0 && length <= BUFFERED_BYTES) {
+            byte[] bytes;
+            try {
+                bytes = body.readNBytes((int) length);
+            } catch (IOException e) {
+                if (owned.get()) {
+                    upstream.markFailure();
+                }
+                release(owned, upstream, connection, false);
+                fail(future, server, e instanceof SocketTimeoutException ? HttpStatus.GATEWAY_TIMEOUT : HttpStatus.BAD_GATEWAY);
+                return false;
+            }
+            release(owned, upstream, connection, reusable);
+            result.setBody(bytes);
+            // A HEAD answer states the length of the body it leaves out
+            long stated = "HEAD".equals(request.getMethod()) && response.contentLength >= 0 ? response.contentLength : bytes.length;
+            result.addHeader("Content-Length", String.valueOf(stated));
+            future.complete(result);
+            return false;
+        }
+
+        PipedBody piped = new PipedBody(PIPE_CAPACITY, length);
+        result.setBody(piped);
+        if (length >= 0) {
+            result.addHeader("Content-Length", String.valueOf(length));
+        }
+        if (!future.complete(result)) {
+            release(owned, upstream, connection, false);
+            return false;
+        }
+        pump(piped, body, upstream, connection, owned, reusable);
+        return false;
+    }
+
+    /**
+     * Copies the upstream body into {@code piped}, blocking whenever the client falls behind.
+     */
+    private void pump(PipedBody piped, InputStream body, Upstream upstream, Connection connection,
+            AtomicBoolean owned, boolean reusable) {
+        byte[] buf = new byte[STREAM_CHUNK_BYTES];
+        while (true) {
+            int n;
+            try {
+                n = body.read(buf);
+            } catch (IOException e) {
+                // Not the upstream's fault when a cancellation closed the socket under us
+                if (owned.get()) {
+                    upstream.markFailure();
+                }
+                release(owned, upstream, connection, false);
+                piped.fail(e);
+                return;
+            }
+            if (n < 0) {
+                break;
+            }
+            try {
+                piped.write(buf, 0, n);
+            } catch (IOException e) {
+                // The client went away; the rest of the upstream body is not worth reading
+                release(owned, upstream, connection, false);
+                piped.fail(e);
+                return;
+            }
+        }
+        release(owned, upstream, connection, reusable);
+        piped.finish();
+    }
+
+    private static void release(AtomicBoolean owned, Upstream upstream, Connection connection, boolean reusable) {
+        if (owned.compareAndSet(true, false)) {
+            upstream.release(connection, reusable);
+        } else {
+            // Closed by a cancellation; only the active count is left to settle
+            upstream.release(connection, false);
+        }
+    }
+
+    private void sendBody(OutputStream out, HttpRequest request) throws IOException {
+        long remaining = RequestBodies.length(request);
+        if (remaining == 0) {
+            return;
+        }
+        byte[] buf = new byte[STREAM_CHUNK_BYTES];
+        try (InputStream in = RequestBodies.open(request)) {
+            while (remaining > 0) {
+                int n;
+                try {
+                    n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                } catch (IOException e) {
+                    throw new ClientGoneException(e);
+                }
+                if (n < 0) {
+                    throw new ClientGoneException(new IOException("Request body ended early"));
+                }
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Request line and headers for the upstream: hop-by-hop headers are dropped, the
+     * {@code X-Forwarded-*} headers added and the body length stated explicitly.
+     */
+    private byte[] requestHead(HttpRequest request, ServerBlock server) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(request.getMethod()).append(' ').append(target(request)).append(" HTTP/1.1\r\n");
+
+        Set<String> dropped = connectionTokens(request.getHeader("Connection"));
+        String host = null;
+        if (request.getHeaders() != null) {
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                String name = header.getKey().toLowerCase(Locale.ROOT);
+                if (HOP_BY_HOP.contains(name) || dropped.contains(name) || name.equals("content-length")
+                        || name.equals("expect") || name.startsWith("x-forwarded-")) {
+                    continue;
+                }
+                if (name.equals("host")) {
+                    host = header.getValue();
+                }
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (host == null && server != null && server.getServerNames() != null && !server.getServerNames().isEmpty()) {
+            host = server.getServerNames().get(0);
+            sb.append("Host: ").append(host).append("\r\n");
+        }
+
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        String client = request.getConnectionHandler() != null ? request.getConnectionHandler().getRemoteAddress() : null;
+        if (client != null) {
+            forwardedFor = forwardedFor != null ? forwardedFor + ", " + client : client;
+        }
+        if (forwardedFor != null) {
+            sb.append("X-Forwarded-For: ").append(forwardedFor).append("\r\n");
+        }
+        sb.append("X-Forwarded-Proto: http\r\n");
+        if (host != null) {
+            sb.append("X-Forwarded-Host: ").append(host).append("\r\n");
+        }
+
+        long length = RequestBodies.length(request);
+        if (length > 0 || "POST".equals(request.getMethod()) || "PUT".equals(request.getMethod())
+                || "PATCH".equals(request.getMethod())) {
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String target(HttpRequest request) {
+        String uri = request.getUri();
+        if (uri != null && uri.startsWith("/")) {
+            return uri;
+        }
+        String query = request.getQueryString();
+        return request.getPath() + (query != null && !query.isEmpty() ? "?" + query : "");
+    }
+
+    /**
+     * Copies end-to-end headers with canonical names, so the rest of the server finds
+     * them. The response model holds one value per name: repeats are joined with commas,
+     * except {@code Set-Cookie}, which cannot be joined and keeps every line.
+     */
+    private static void copyHeaders(ResponseHead head, HttpResponse response) {
+        Set<String> dropped = connectionTokens(head.connection);
+        Map<String, String> headers = response.getHeaders();
+        for (String[] header : head.headers) {
+            String lower = header[0].toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP.contains(lower) || dropped.contains(lower) || lower.equals("content-length")) {
+                continue;
+            }
+            if (lower.equals("set-cookie")) {
+                response.addSetCookie(header[1]);
+                continue;
+            }
+            String name = canonicalName(header[0]);
+            String existing = headers.get(name);
+            headers.put(name, existing == null ? header[1] : existing + ", " + header[1]);
+        }
+    }
+
+    private static String canonicalName(String name) {
+        char[] chars = name.toLowerCase(Locale.ROOT).toCharArray();
+        boolean upper = true;
+        for (int i = 0; i < chars.length; i++) {
+            if (upper) {
+                chars[i] = Character.toUpperCase(chars[i]);
+            }
+            upper = chars[i] == '-';
+        }
+        return new String(chars);
+    }
+
+    private static Set<String> connectionTokens(String connection) {
+        if (connection == null || connection.isEmpty()) {
+            return Set.of();
+        }
+        Set<String> tokens = new HashSet<>();
+        for (String token : connection.split(",")) {
+            tokens.add(token.trim().toLowerCase(Locale.ROOT));
+        }
+        return tokens;
+    }
+
+    /**
+     * Reads a response head, skipping interim 1xx responses.
+     *
+     * @throws IOException if the upstream closed the connection or sent a malformed head
+     */
+    private static ResponseHead readHead(InputStream in) throws IOException {
+        while (true) {
+            int[] budget = { MAX_HEADER_BYTES };
+            String statusLine = readLine(in, budget);
+            if (statusLine == null) {
+                throw new IOException("Upstream closed the connection without answering");
+            }
+            ResponseHead head = parseStatusLine(statusLine);
+            while (true) {
+                String line = readLine(in, budget);
+                if (line == null) {
+                    throw new IOException("Upstream closed the connection mid-header");
+                }
+                if (line.isEmpty()) {
+                    break;
+                }
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new MalformedResponseException("Malformed upstream header: " + line);
+                }
+                head.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+            if (head.status == 101) {
+                throw new MalformedResponseException("Upstream switched protocols");
+            }
+            if (head.status >= 200) {
+                return head;
+            }
+        }
+    }
+
+    private static ResponseHead parseStatusLine(String line) throws IOException {
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+            throw new MalformedResponseException("Malformed upstream status line: " + line);
+        }
+        ResponseHead head = new ResponseHead();
+        try {
+            head.status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new MalformedResponseException("Malformed upstream status line: " + line);
+        }
+        head.reason = parts.length > 2 ? parts[2] : "";
+        head.keepAlive = parts[0].equals("HTTP/1.1");
+        return head;
+    }
+
+    /**
+     * Reads one line without its CR LF, or returns null at end of stream before any byte.
+     */
+    private static String readLine(InputStream in, int[] budget) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new IOException("Upstream closed the connection mid-line");
+            }
+            if (--budget[0] < 0) {
+                throw new MalformedResponseException("Upstream header block exceeds " + MAX_HEADER_BYTES + " bytes");
+            }
+            line.write(c);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private void fail(CompletableFuture<HttpResponse> future, ServerBlock server, HttpStatus status) {
+        if (!future.isDone()) {
+            FAILURES.increment();
+            future.complete(errorHandler.handle(server, status));
+        }
+    }
+
+    private static final class ResponseHead {
+        int status;
+        String reason;
+        boolean keepAlive;
+        boolean chunked;
+        long contentLength = -1;
+        String connection;
+        final List<String[]> headers = new ArrayList<>();
+
+        void add(String name, String value) {
+            headers.add(new String[] { name, value });
+            if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+            } else if (name.equalsIgnoreCase("Connection")) {
+                connection = connection == null ? value : connection + ", " + value;
+                if (connectionTokens(value).contains("close")) {
+                    keepAlive = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * The upstream sent something that is not HTTP; retrying on another connection will not help.
+     */
+    private static final class MalformedResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedResponseException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The client's request body broke off; the upstream is not to blame.
+     */
+    private static final class ClientGoneException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClientGoneException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Exactly {@code length} bytes of a keep-alive connection, so the rest stays for the next response.
+     */
+    private static final class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Upstream closed the connection mid-body");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Decodes a chunked body, consuming the trailers after the last chunk.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining;
+        private boolean done;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) {
+                throw new IOException("Upstream closed the connection mid-chunk");
+            }
+            chunkRemaining -= n;
+            if (chunkRemaining == 0) {
+                expectLine("");
+            }
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            String line = requireLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            try {
+                chunkRemaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size from upstream: " + line);
+            }
+            if (chunkRemaining < 0) {
+                throw new IOException("Malformed chunk size from upstream: " + line);
+            }
+            if (chunkRemaining == 0) {
+                // Trailers are dropped; they run to an empty line
+                while (!requireLine().isEmpty()) {
+                    // skip
+                }
+                done = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void expectLine(String expected) throws IOException {
+            if (!requireLine().equals(expected)) {
+                throw new IOException("Malformed chunk framing from upstream");
+            }
+        }
+
+        private String requireLine() throws IOException {
+            String line = readLine(in, new int[] { MAX_HEADER_BYTES });
+            if (line == null) {
+                throw new IOException("Upstream closed the connection mid-body");
+            }
+            return line;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package handlers;
+
+import http.RequestBodyPipe;
+import http.model.HttpRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uniform access to a request body for handlers that pass it on: it is either still
+ * arriving through a {@link RequestBodyPipe}, held in memory, or spooled to a file.
+ */
+final class RequestBodies {
+
+    private RequestBodies() {
+    }
+
+    static InputStream open(HttpRequest request) throws IOException {
+        if (request.getBodyPipe() != null) {
+            return request.getBodyPipe();
+        }
+        byte[] body = request.getBody();
+        if (body != null && body.length > 0) {
+            return new ByteArrayInputStream(body);
+        }
+        File uploaded = request.getUploadedFile();
+        if (uploaded != null && uploaded.exists()) {
+            return new FileInputStream(uploaded);
+        }
+        return InputStream.nullInputStream();
+    }
+
+    static long length(HttpRequest request) {
+        if (request.getBodyPipe() != null) {
+            return request.getBodyPipe().length();
+        }
+        byte[] body = request.getBody();
+        if (body != null && body.length > 0) {
+            return body.length;
+        }
+        File uploaded = request.getUploadedFile();
+        return uploaded != null && uploaded.exists() ? uploaded.length() : 0;
+    }
+
+    /**
+     * Drops whatever of a streamed body is still unread, so the connection can drain it.
+     */
+    static void close(HttpRequest request) {
+        if (request.getBodyPipe() != null) {
+            request.getBodyPipe().close();
+        }
+    }
+}
@@ -4,17 +4,36 @@ import config.model.WebServerConfig.ServerBlock;
 import http.model.HttpRequest;
 import http.model.HttpResponse;
 import http.model.HttpStatus;
-import java.io.File;
+import http.model.ResponseBody;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import cache.CompressedVariantCache;
+import cache.DirectoryListingCache;
+import cache.DirectoryListingCache.Listing;
+import cache.DocRootIndex;
+import cache.FileMeta;
+import cache.FileMetadataCache;
+import http.ResponseCompressor;
 import routing.model.Route;
 import util.SonicLogger;
 
 public class StaticHandler {
 
     private static final SonicLogger logger = SonicLogger.getLogger(StaticHandler.class);
-    private final ErrorHandler errorHandler = new ErrorHandler();
+    private static final Map<String, Path> rootPaths = new ConcurrentHashMap<>();
+    // Files at least this large are sent from a memory mapping instead of a heap copy
+    private static final long MAP_THRESHOLD_BYTES = 64 * 1024;
+
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
+    private final FileMetadataCache fileCache = FileMetadataCache.getInstance();
 
     public HttpResponse handle(HttpRequest request, ServerBlock server, Route route) {
         String rootFolder = (route.getRoot() != null) ? route.getRoot() : server.getRoot();
@@ -36,53 +55,185 @@ public class StaticHandler {
     }
 
     private HttpResponse handleGet(Path filePath, HttpRequest request, Route route, ServerBlock server) {
-        File file = filePath.toFile();
-        System.err.println("her " + filePath);
-        if (!file.exists()) {
+        FileMeta meta = stat(filePath);
+        if (!meta.exists()) {
             return errorHandler.handle(server, HttpStatus.NOT_FOUND);
         }
 
-        if (file.isDirectory()) {
-            return handleDirectory(file, request.getPath(), route, server);
+        if (meta.isDirectory()) {
+            return handleDirectory(filePath, request, route, server);
         }
 
-        return serveFile(file, server);
+        return serveFile(filePath, meta, request, route, server);
     }
 
-    private HttpResponse handleDirectory(File directory, String requestPath, Route route, ServerBlock server) {
+    private HttpResponse handleDirectory(Path directory, HttpRequest request, Route route, ServerBlock server) {
         if (route.isAutoIndex()) {
-            HttpResponse response = new HttpResponse();
-            response.setStatus(HttpStatus.OK);
-            response.setBody(generateDirectoryListing(directory, requestPath).getBytes());
-            response.addHeader("Content-Type", "text/html; charset=UTF-8");
-            return response;
+            return listDirectory(directory, request, server);
         }
 
         String indexFileName = (route.getIndex() != null && !route.getIndex().isEmpty())
                 ? route.getIndex() : "index.html";
 
-        File indexFile = new File(directory, indexFileName);
-        if (indexFile.exists() && indexFile.isFile()) {
-            return serveFile(indexFile, server);
+        Path indexFile = directory.resolve(indexFileName);
+        FileMeta indexMeta = stat(indexFile);
+        if (indexMeta.isFile()) {
+            return serveFile(indexFile, indexMeta, request, route, server);
         }
         return errorHandler.handle(server, HttpStatus.FORBIDDEN);
     }
 
-    private HttpResponse serveFile(File file, ServerBlock server) {
-        HttpResponse response = new HttpResponse();
+    private HttpResponse listDirectory(Path directory, HttpRequest request, ServerBlock server) {
         try {
-            byte[] content = Files.readAllBytes(file.toPath());
+            Listing listing = DirectoryListingCache.getInstance().get(directory, stat(directory));
+            AutoIndex autoIndex = new AutoIndex(listing, request);
+
+            HttpResponse response = new HttpResponse();
             response.setStatus(HttpStatus.OK);
-            response.setBody(content);
-            response.addHeader("Content-Type", util.MimeTypes.getMimeType(file.getName()));
-            response.addHeader("Content-Length", String.valueOf(content.length));
+            response.setBody(autoIndex.stream());
+            response.addHeader("Content-Type", autoIndex.getContentType());
+            return response;
         } catch (IOException e) {
-            logger.error("Error reading file: " + file.getPath(), e);
+            logger.error("Error listing directory: " + directory, e);
+            return errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private HttpResponse serveFile(Path file, FileMeta meta, HttpRequest request, Route route, ServerBlock server) {
+        String mimeType = meta.getMimeType() != null
+                ? meta.getMimeType() : util.MimeTypes.getMimeType(file.getFileName().toString());
+
+        if (route.isPrecompressedEnabled()) {
+            HttpResponse precompressed = servePrecompressed(file, mimeType, request, route);
+            if (precompressed != null) {
+                return precompressed;
+            }
+        }
+
+        HttpResponse response = new HttpResponse();
+        try {
+            response.setStatus(HttpStatus.OK);
+            setFileBody(response, file, meta);
+            response.addHeader("Content-Type", mimeType);
+            response.addHeader("ETag", meta.getEtag());
+            if (route.isPrecompressedEnabled()) {
+                ResponseCompressor.addVary(response);
+            }
+            Supplier<byte[]> source = response.getBodyBuffer().isDirect()
+                    ? () -> readForCompression(file, meta) : response::getBody;
+            ResponseCompressor.apply(request, route, response,
+                    CompressedVariantCache.variantKey(file.toAbsolutePath().toString(), meta.getLastModified()), source);
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Error reading file: " + file, e);
+            fileCache.invalidate(file);
             return errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR);
         }
         return response;
     }
 
+    /**
+     * Serves a sidecar such as {@code app.js.gz} when the client accepts its encoding.
+     * Returns null when no acceptable sidecar exists so the original is served instead.
+     */
+    private HttpResponse servePrecompressed(Path file, String mimeType, HttpRequest request, Route route) {
+        Map<String, String> sidecars = route.getCompression().getSidecars();
+        List<String> accepted = ResponseCompressor.acceptable(request.getHeader("Accept-Encoding"), sidecars.keySet());
+
+        for (String encoding : accepted) {
+            Path sidecar = file.resolveSibling(file.getFileName() + sidecars.get(encoding));
+            FileMeta meta = stat(sidecar);
+            if (!meta.isFile()) {
+                continue;
+            }
+
+            try {
+                HttpResponse response = new HttpResponse();
+                response.setStatus(HttpStatus.OK);
+                setFileBody(response, sidecar, meta);
+                response.addHeader("Content-Type", mimeType);
+                response.addHeader("Content-Encoding", encoding);
+                response.addHeader("ETag", meta.getEtag());
+                ResponseCompressor.addVary(response);
+                return response;
+            } catch (IOException e) {
+                logger.error("Error reading precompressed file: " + sidecar, e);
+                fileCache.invalidate(sidecar);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves metadata from the startup doc-root index when it covers the path, so no
+     * filesystem call is made; otherwise from the short-TTL stat cache.
+     */
+    private FileMeta stat(Path path) {
+        DocRootIndex index = DocRootIndex.getActive();
+        if (index != null && index.covers(path)) {
+            return index.get(path);
+        }
+        return fileCache.stat(path);
+    }
+
+    /**
+     * Sets the file as the response body. Files larger than the per-connection buffer
+     * limit are sent as a file region and never loaded; mid-sized files come from a cached
+     * read-only mapping, and small ones are read onto the heap.
+     *
+     * A region outlives the cache entry's TTL on a slow download, so it gets a channel of
+     * its own rather than the cached one, which eviction may close mid-transfer.
+     */
+    private void setFileBody(HttpResponse response, Path file, FileMeta meta) throws IOException {
+        if (meta.getSize() > ResponseBody.MAX_BUFFERED_BYTES) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            response.setBody(ResponseBody.ofFile(channel, 0, meta.getSize()));
+        } else {
+            response.setBody(readFile(file, meta));
+        }
+        response.addHeader("Content-Length", String.valueOf(response.getBodyLength()));
+    }
+
+    private ByteBuffer readFile(Path file, FileMeta meta) throws IOException {
+        if (meta.getSize() >= MAP_THRESHOLD_BYTES) {
+            ByteBuffer mapped = fileCache.map(file);
+            if (mapped == null) {
+                throw new IOException("Cannot map " + file);
+            }
+            return mapped;
+        }
+        return readOnHeap(file, meta);
+    }
+
+    /**
+     * The file's bytes for the compressor. A mapping is never copied on the heap: once the
+     * file is truncated that faults (SIGBUS) instead of reading short, so read it instead.
+     */
+    private byte[] readForCompression(Path file, FileMeta meta) {
+        try {
+            return readOnHeap(file, meta).array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer readOnHeap(Path file, FileMeta meta) throws IOException {
+        FileChannel channel = fileCache.open(file);
+        if (channel == null) {
+            throw new IOException("Cannot read " + file);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) meta.getSize());
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("File truncated while reading: " + file);
+            }
+            position += n;
+        }
+        return buffer.flip();
+    }
+
     private HttpResponse handlePost(HttpRequest request) {
 
         HttpResponse response = new HttpResponse();
@@ -104,8 +255,8 @@ public class StaticHandler {
                 relativePath = "/";
             }
 
+            Path rootPath = rootPaths.computeIfAbsent(root, r -> Paths.get(r).normalize());
             Path fullPath = Paths.get(root, relativePath).normalize();
-            Path rootPath = Paths.get(root).normalize();
 
             if (!fullPath.startsWith(rootPath)) {
                 logger.warn("Path traversal blocked: " + requestPath);
@@ -118,45 +269,4 @@ public class StaticHandler {
             return null;
         }
     }
-
-    private String generateDirectoryListing(File directory, String requestPath) {
-        StringBuilder html = new StringBuilder();
-
-        html.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\">");
-        html.append("<title>Index of ").append(requestPath).append("</title>");
-        html.append("<style>");
-        html.append("body{font-family:Arial;margin:40px;background:#f5f5f5}");
-        html.append("h1{color:#333;border-bottom:2px solid #da70d6;padding-bottom:10px}");
-        html.append("ul{list-style:none;padding:0;background:#fff;border-radius:5px}");
-        html.append("li{padding:12px;border-bottom:1px solid #eee}");
-        html.append("li:hover{background:#f9f9f9}");
-        html.append("a{color:#8a2be2;text-decoration:none}");
-        html.append("a:hover{text-decoration:underline}");
-        html.append("</style></head><body>");
-        html.append("<h1>📁 Index of ").append(requestPath).append("</h1><ul>");
-
-        if (!requestPath.equals("/")) {
-            html.append("<li><a href=\"..\">⬆️ Parent Directory</a></li>");
-        }
-
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                String name = file.getName();
-                String icon = file.isDirectory() ? "📁 " : "📄 ";
-                String href = requestPath.endsWith("/") ? requestPath + name : requestPath + "/" + name;
-
-                if (file.isDirectory()) {
-                    name += "/";
-                    href += "/";
-                }
-
-                html.append("<li><a href=\"").append(href).append("\">")
-                        .append(icon).append(name).append("</a></li>");
-            }
-        }
-
-        html.append("</ul></body></html>");
-        return html.toString();
-    }
 }
@@ -14,7 +14,7 @@ import routing.model.Route;
 
 public class UploadHandler {
 
-    private final ErrorHandler errorHandler = new ErrorHandler();
+    private final ErrorHandler errorHandler = ErrorHandler.getInstance();
 
     public HttpResponse handle(HttpRequest request, Route route, ServerBlock server) {
         HttpResponse response = new HttpResponse();
@@ -0,0 +1,274 @@
+package handlers;
+
+import handlers.model.Proxy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import util.Metrics;
+import util.SonicLogger;
+
+/**
+ * The backends of one proxy route: picks an upstream per request, keeps a pool of
+ * keep-alive connections to each, and takes upstreams out of rotation for a while after
+ * repeated connect or read errors (passive health checks; nothing is probed).
+ */
+public final class UpstreamGroup {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(UpstreamGroup.class);
+
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 8 * 1024;
+
+    private static final LongAdder OPENED = Metrics.counter("proxy.connectionsOpened");
+    private static final LongAdder REUSED = Metrics.counter("proxy.connectionsReused");
+    private static final LongAdder MARKED_DOWN = Metrics.counter("proxy.upstreamsMarkedDown");
+
+    // Proxy settings do not override equals, so each configured route gets its own group
+    private static final Map<Proxy, UpstreamGroup> GROUPS = new ConcurrentHashMap<>();
+
+    static {
+        Metrics.gauge("proxy.idleConnections", () -> {
+            int idle = 0;
+            for (UpstreamGroup group : GROUPS.values()) {
+                for (Upstream upstream : group.upstreams) {
+                    idle += upstream.idleCount();
+                }
+            }
+            return idle;
+        });
+    }
+
+    private final Proxy cfg;
+    private final Upstream[] upstreams;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private UpstreamGroup(Proxy cfg) {
+        this.cfg = cfg;
+        this.upstreams = new Upstream[cfg.getUpstreams().size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i] = new Upstream(cfg.getUpstreams().get(i), cfg);
+        }
+    }
+
+    static UpstreamGroup forProxy(Proxy proxy) {
+        return GROUPS.computeIfAbsent(proxy, UpstreamGroup::new);
+    }
+
+    public static void closeAll() {
+        for (UpstreamGroup group : GROUPS.values()) {
+            for (Upstream upstream : group.upstreams) {
+                upstream.closeIdle();
+            }
+        }
+    }
+
+    Proxy config() {
+        return cfg;
+    }
+
+    /**
+     * Picks an upstream that was not tried yet for this request, preferring healthy ones.
+     * When every untried upstream is marked down, one is tried anyway rather than failing
+     * outright. Returns null once all were tried.
+     */
+    Upstream choose(Set<Upstream> tried) {
+        long now = System.currentTimeMillis();
+        Upstream chosen = pick(tried, now, true);
+        return chosen != null ? chosen : pick(tried, now, false);
+    }
+
+    private Upstream pick(Set<Upstream> tried, long now, boolean healthyOnly) {
+        int start = Math.floorMod(next.getAndIncrement(), upstreams.length);
+        boolean leastConn = Proxy.LEAST_CONN.equals(cfg.getBalance());
+        Upstream best = null;
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream candidate = upstreams[(start + i) % upstreams.length];
+            if (tried.contains(candidate) || (healthyOnly && !candidate.isAvailable(now))) {
+                continue;
+            }
+            if (!leastConn) {
+                return candidate;
+            }
+            // Ties go to the round-robin order, so idle upstreams share the load
+            if (best == null || candidate.active.get() < best.active.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    static final class Upstream {
+        private final String name;
+        private final InetSocketAddress address;
+        private final Proxy cfg;
+        // Most recently used first
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private int fails;
+        private long failWindowStart;
+        private long downUntil;
+
+        private Upstream(String spec, Proxy cfg) {
+            String address = spec.startsWith("http://") ? spec.substring("http://".length()) : spec;
+            int colon = address.lastIndexOf(':');
+            String host = address.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            this.name = address;
+            this.address = new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+            this.cfg = cfg;
+        }
+
+        String name() {
+            return name;
+        }
+
+        /**
+         * Takes an idle keep-alive connection, or opens a new one. The caller counts as an
+         * active request until it releases the connection.
+         */
+        Connection acquire() throws IOException {
+            active.incrementAndGet();
+            Connection connection = takeIdle();
+            if (connection != null) {
+                REUSED.increment();
+                return connection;
+            }
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address, (int) cfg.getConnectTimeoutMs());
+                socket.setSoTimeout((int) cfg.getReadTimeoutMs());
+            } catch (IOException e) {
+                active.decrementAndGet();
+                closeQuietly(socket);
+                throw e;
+            }
+            OPENED.increment();
+            return new Connection(socket);
+        }
+
+        /**
+         * Returns a connection whose response was read to the end; anything else is closed.
+         */
+        void release(Connection connection, boolean reusable) {
+            active.decrementAndGet();
+            if (reusable && !connection.closed) {
+                synchronized (this) {
+                    if (idle.size() < cfg.getMaxIdle()) {
+                        connection.idleSince = System.currentTimeMillis();
+                        idle.addFirst(connection);
+                        return;
+                    }
+                }
+            }
+            connection.close();
+        }
+
+        private Connection takeIdle() {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                // The oldest connections sit at the tail; drop the expired ones
+                Iterator<Connection> it = idle.descendingIterator();
+                while (it.hasNext()) {
+                    Connection connection = it.next();
+                    if (now - connection.idleSince <= cfg.getIdleTimeoutMs()) {
+                        break;
+                    }
+                    it.remove();
+                    connection.close();
+                }
+                Connection connection = idle.pollFirst();
+                if (connection != null) {
+                    connection.reused = true;
+                }
+                return connection;
+            }
+        }
+
+        synchronized void closeIdle() {
+            for (Connection connection : idle) {
+                connection.close();
+            }
+            idle.clear();
+        }
+
+        private synchronized int idleCount() {
+            return idle.size();
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return now >= downUntil;
+        }
+
+        synchronized void markSuccess() {
+            fails = 0;
+        }
+
+        void markFailure() {
+            long now = System.currentTimeMillis();
+            boolean down = false;
+            synchronized (this) {
+                if (now - failWindowStart > cfg.getFailTimeoutMs()) {
+                    failWindowStart = now;
+                    fails = 0;
+                }
+                fails++;
+                if (cfg.getMaxFails() > 0 && fails >= cfg.getMaxFails() && now >= downUntil) {
+                    downUntil = now + cfg.getFailTimeoutMs();
+                    fails = 0;
+                    down = true;
+                }
+            }
+            if (down) {
+                MARKED_DOWN.increment();
+                logger.warn("Upstream " + name + " marked down for " + cfg.getFailTimeoutMs() + " ms");
+                // Its pooled connections are most likely dead too
+                closeIdle();
+            }
+        }
+    }
+
+    /**
+     * One keep-alive connection to an upstream.
+     */
+    static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        boolean reused;
+        private long idleSince;
+        private volatile boolean closed;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), READ_BUFFER_BYTES);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_BYTES);
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -7,6 +7,8 @@ public class Cgi {
         private boolean enabled;
         private String binDir;
         private Map<String, String> byExtension;
+        private CgiWorkers workers;
+        private CgiLimits limits;
 
         public boolean isEnabled() {
             return enabled;
@@ -32,6 +34,25 @@ public class Cgi {
             this.byExtension = byExtension;
         }
 
+        public CgiWorkers getWorkers() {
+            return workers;
+        }
+
+        public void setWorkers(CgiWorkers workers) {
+            this.workers = workers;
+        }
+
+        /**
+         * This route's own limits, or null to only be bound by the server-wide ones.
+         */
+        public CgiLimits getLimits() {
+            return limits;
+        }
+
+        public void setLimits(CgiLimits limits) {
+            this.limits = limits;
+        }
+
         public String getInterpreterForExtension(String ext) {
             if (byExtension == null) {
                 return null;
@@ -0,0 +1,83 @@
+package handlers.model;
+
+/**
+ * Concurrency and run-time limits for CGI scripts. Used per route under {@code cgi.limits}
+ * and once for the whole server under the top-level {@code cgiLimits}; a request must
+ * fit under both. The timeouts of a route's own limits replace the global ones.
+ */
+public class CgiLimits {
+
+    private int maxConcurrent;
+    private int maxQueue = 64;
+    private long queueTimeoutMs = 10_000;
+    private long timeoutMs = 30_000;
+    private long cpuTimeoutMs;
+    private int retryAfterSeconds = 1;
+
+    /**
+     * Scripts allowed to run at once, or 0 for no limit.
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Requests that may wait, in arrival order, for a free slot. Requests beyond this get 503.
+     */
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    public long getQueueTimeoutMs() {
+        return queueTimeoutMs;
+    }
+
+    public void setQueueTimeoutMs(long queueTimeoutMs) {
+        this.queueTimeoutMs = queueTimeoutMs;
+    }
+
+    /**
+     * Wall-clock time a script may run before it and its children are killed, or 0 for none.
+     * Time spent blocked on a client that reads a streamed response slowly does not count.
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * CPU time a script and its children may use before they are killed, or 0 for none.
+     */
+    public long getCpuTimeoutMs() {
+        return cpuTimeoutMs;
+    }
+
+    public void setCpuTimeoutMs(long cpuTimeoutMs) {
+        this.cpuTimeoutMs = cpuTimeoutMs;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "CgiLimits{maxConcurrent=" + maxConcurrent + ", maxQueue=" + maxQueue
+                + ", timeoutMs=" + timeoutMs + ", cpuTimeoutMs=" + cpuTimeoutMs + "}";
+    }
+}
@@ -0,0 +1,100 @@
+package handlers.model;
+
+import java.util.Map;
+
+/**
+ * Persistent interpreter workers for a CGI route. Each worker runs a launcher script that
+ * loads and runs CGI scripts in-process, so requests skip interpreter startup.
+ */
+public class CgiWorkers {
+
+    private boolean enabled;
+    private int min = 1;
+    private int max = 4;
+    private int maxRequests = 1000;
+    private long healthCheckMs = 10_000;
+    private long acquireTimeoutMs = 5_000;
+    private Map<String, String> byExtension;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Workers started up front and kept alive by the health check.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    public void setMin(int min) {
+        this.min = min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public void setMax(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Requests served by one worker before it is replaced, or 0 for no limit.
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    public long getHealthCheckMs() {
+        return healthCheckMs;
+    }
+
+    public void setHealthCheckMs(long healthCheckMs) {
+        this.healthCheckMs = healthCheckMs;
+    }
+
+    /**
+     * How long a request waits for a busy pool before it is answered with 503.
+     */
+    public long getAcquireTimeoutMs() {
+        return acquireTimeoutMs;
+    }
+
+    public void setAcquireTimeoutMs(long acquireTimeoutMs) {
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /**
+     * Extension to launcher script, e.g. {@code ".py" -> "./cgi-workers/python_worker.py"}.
+     * Extensions without a launcher fall back to a process per request.
+     */
+    public Map<String, String> getByExtension() {
+        return byExtension;
+    }
+
+    public void setByExtension(Map<String, String> byExtension) {
+        this.byExtension = byExtension;
+    }
+
+    public String getLauncherForExtension(String ext) {
+        if (!enabled || byExtension == null) {
+            return null;
+        }
+        return byExtension.get(ext.toLowerCase());
+    }
+
+    @Override
+    public String toString() {
+        return "CgiWorkers{enabled=" + enabled + ", min=" + min + ", max=" + max
+                + ", maxRequests=" + maxRequests + "}";
+    }
+}
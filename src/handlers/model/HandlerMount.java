@@ -0,0 +1,34 @@
+package handlers.model;
+
+/**
+ * Mounts an in-process {@link handlers.spi.RequestHandler} on a route.
+ */
+public class HandlerMount {
+
+    private String name;
+    private long timeoutMs = 10_000;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * How long the handler may take before the client gets 504, or 0 for no limit.
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public String toString() {
+        return "HandlerMount{name='" + name + "', timeoutMs=" + timeoutMs + "}";
+    }
+}
@@ -0,0 +1,110 @@
+package handlers.model;
+
+import java.util.List;
+
+/**
+ * A route that forwards requests to backend HTTP servers, configured as
+ * {@code "proxy": { "upstreams": ["127.0.0.1:9001", ...], "balance": "round_robin" }}.
+ *
+ * An upstream is marked down for {@code failTimeoutMs} after {@code maxFails} connect or
+ * read errors within that window, and gets traffic again once it has passed.
+ */
+public class Proxy {
+
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String LEAST_CONN = "least_conn";
+
+    private List<String> upstreams;
+    private String balance = ROUND_ROBIN;
+    private long connectTimeoutMs = 2_000;
+    private long readTimeoutMs = 30_000;
+    private int maxIdle = 16;
+    private long idleTimeoutMs = 4_000;
+    private int maxFails = 3;
+    private long failTimeoutMs = 10_000;
+
+    /**
+     * Backends as {@code host:port}, optionally prefixed with {@code http://}.
+     */
+    public List<String> getUpstreams() {
+        return upstreams;
+    }
+
+    public void setUpstreams(List<String> upstreams) {
+        this.upstreams = upstreams;
+    }
+
+    /**
+     * {@link #ROUND_ROBIN} or {@link #LEAST_CONN}.
+     */
+    public String getBalance() {
+        return balance;
+    }
+
+    public void setBalance(String balance) {
+        this.balance = balance;
+    }
+
+    public long getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public void setConnectTimeoutMs(long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Longest wait for the next bytes from a backend, or 0 for no limit.
+     */
+    public long getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public void setReadTimeoutMs(long readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Keep-alive connections kept open per upstream between requests.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * How long an idle connection is reused. Keep it below the backend's own keep-alive
+     * timeout (5 s in Node, for example) so the backend never closes one mid-request.
+     */
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public int getMaxFails() {
+        return maxFails;
+    }
+
+    public void setMaxFails(int maxFails) {
+        this.maxFails = maxFails;
+    }
+
+    public long getFailTimeoutMs() {
+        return failTimeoutMs;
+    }
+
+    public void setFailTimeoutMs(long failTimeoutMs) {
+        this.failTimeoutMs = failTimeoutMs;
+    }
+
+    @Override
+    public String toString() {
+        return "Proxy{upstreams=" + upstreams + ", balance=" + balance + "}";
+    }
+}
@@ -0,0 +1,40 @@
+package handlers.spi;
+
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+
+/**
+ * An endpoint that runs inside the server's JVM instead of as a CGI process. Implementations
+ * are found with {@link java.util.ServiceLoader}, from the classpath and from the JARs in the
+ * configured {@code handlersDir}, and are mounted on a route by name:
+ *
+ * <pre>
+ * "handler": { "name": "orders", "timeoutMs": 2000 }
+ * </pre>
+ *
+ * One instance serves every request on every route that mounts it, on a shared worker
+ * pool, so implementations must be thread-safe. {@link #handle} may block; it is interrupted
+ * when the route's timeout expires or the client goes away. To stream, return a response
+ * whose body is a {@link http.PipedBody} and keep writing to it from another thread.
+ */
+public interface RequestHandler {
+
+    /**
+     * The name routes use to mount this handler.
+     */
+    String name();
+
+    /**
+     * Called once after loading, before the first request.
+     */
+    default void init() throws Exception {
+    }
+
+    HttpResponse handle(HttpRequest request) throws Exception;
+
+    /**
+     * Called once at shutdown.
+     */
+    default void destroy() {
+    }
+}
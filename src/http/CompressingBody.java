@@ -0,0 +1,126 @@
+package http;
+
+import http.model.ResponseBody;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a streaming body as it is pulled, so generated responses can be gzip or
+ * deflate encoded without buffering them. The compressed length is unknown, so the
+ * result is always sent chunked.
+ */
+final class CompressingBody extends ResponseBody {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final ResponseBody source;
+    private final boolean gzip;
+    private final DeflaterPool pool;
+    private Deflater deflater;
+
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    // Kept in read mode between calls
+    private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE + GZIP_TRAILER_SIZE);
+    private long inputBytes;
+    private boolean inputDone;
+
+    CompressingBody(ResponseBody source, String encoding, int level) {
+        this.source = source;
+        this.gzip = ResponseCompressor.GZIP.equals(encoding);
+        this.pool = gzip ? DeflaterPool.RAW : DeflaterPool.ZLIB;
+        this.deflater = pool.acquire(level);
+
+        if (gzip) {
+            out.put(ResponseCompressor.GZIP_HEADER);
+        }
+        out.flip();
+    }
+
+    @Override
+    public long length() {
+        return UNKNOWN_LENGTH;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!out.hasRemaining()) {
+            if (deflater == null) {
+                return -1;
+            }
+            if (!fill()) {
+                return 0;
+            }
+        }
+
+        int n = Math.min(dst.remaining(), out.remaining());
+        dst.put(out.slice().limit(n));
+        out.position(out.position() + n);
+        return n;
+    }
+
+    /**
+     * Refills {@code out} with compressed bytes. Returns false if the source has nothing
+     * available yet.
+     */
+    private boolean fill() throws IOException {
+        out.clear().limit(BUFFER_SIZE);
+        try {
+            while (out.position() == 0) {
+                if (deflater.finished()) {
+                    if (gzip) {
+                        out.limit(out.capacity());
+                        putIntLE((int) crc.getValue());
+                        putIntLE((int) inputBytes);
+                    }
+                    pool.release(deflater);
+                    deflater = null;
+                    return true;
+                }
+
+                if (deflater.needsInput() && !inputDone) {
+                    // The deflater keeps a reference to this buffer, so it must never be
+                    // left holding stale bytes between reads
+                    in.clear();
+                    int r = source.read(in);
+                    in.flip();
+                    if (r < 0) {
+                        inputDone = true;
+                        deflater.finish();
+                    } else if (r == 0) {
+                        return false;
+                    } else {
+                        crc.update(in.duplicate());
+                        inputBytes += r;
+                        deflater.setInput(in);
+                    }
+                }
+                deflater.deflate(out);
+            }
+            return true;
+        } finally {
+            out.flip();
+        }
+    }
+
+    @Override
+    public void notifyWhenReadable(Runnable callback) {
+        source.notifyWhenReadable(callback);
+    }
+
+    private void putIntLE(int value) {
+        out.put((byte) value).put((byte) (value >>> 8)).put((byte) (value >>> 16)).put((byte) (value >>> 24));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) {
+            pool.release(deflater);
+            deflater = null;
+        }
+        source.close();
+    }
+}
@@ -0,0 +1,47 @@
+package http;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Reuses {@link Deflater} instances so each compressed response does not pay for
+ * allocating (and later finalizing) a native zlib stream.
+ */
+public class DeflaterPool {
+
+    private static final int MAX_IDLE = 32;
+
+    /** Raw deflate streams, wrapped with a gzip header and trailer by the caller. */
+    public static final DeflaterPool RAW = new DeflaterPool(true);
+    /** zlib-wrapped streams, as expected by {@code Content-Encoding: deflate}. */
+    public static final DeflaterPool ZLIB = new DeflaterPool(false);
+
+    private final boolean nowrap;
+    private final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private DeflaterPool(boolean nowrap) {
+        this.nowrap = nowrap;
+    }
+
+    public Deflater acquire(int level) {
+        Deflater deflater = idle.poll();
+        if (deflater == null) {
+            return new Deflater(level, nowrap);
+        }
+        idleCount.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.offer(deflater);
+        } else {
+            idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package http;
+
+import http.model.ResponseBody;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A body written by a producer thread and read by the event loop through a bounded ring
+ * buffer. The producer blocks while the buffer is full, so a client that reads slowly
+ * slows the producer (and the process behind it) down instead of growing the heap.
+ *
+ * Reads never block: they return 0 while the buffer is empty and the writer is parked
+ * with {@link #notifyWhenReadable} until the producer adds more.
+ */
+public final class PipedBody extends ResponseBody {
+
+    private final long length;
+    private final byte[] ring;
+    private int head;
+    private int count;
+
+    private boolean finished;
+    private IOException failure;
+    private boolean closed;
+    private Runnable readableCallback;
+
+    // Time the producer has spent waiting for the reader to make room
+    private long stalledNanos;
+    private long stalledSince;
+    private boolean stalled;
+
+    public PipedBody(int capacity, long length) {
+        this.ring = new byte[capacity];
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Appends bytes, waiting while the buffer is full.
+     *
+     * @throws IOException if the body was closed because the client went away
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            Runnable callback;
+            synchronized (this) {
+                if (count == ring.length && !closed) {
+                    awaitRoom();
+                }
+                if (closed) {
+                    throw new IOException("Response body closed by the connection");
+                }
+
+                int tail = (head + count) % ring.length;
+                int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+                System.arraycopy(b, off, ring, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                callback = takeCallback();
+            }
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    private void awaitRoom() throws IOException {
+        stalled = true;
+        stalledSince = System.nanoTime();
+        try {
+            while (count == ring.length && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing response body");
+        } finally {
+            stalled = false;
+            stalledNanos += System.nanoTime() - stalledSince;
+        }
+    }
+
+    /**
+     * @return the total time {@link #write} has spent waiting on a full buffer, including
+     *         a wait still in progress
+     */
+    public synchronized long stalledNanos() {
+        return stalled ? stalledNanos + System.nanoTime() - stalledSince : stalledNanos;
+    }
+
+    /**
+     * Marks the end of the body once the buffered bytes are read.
+     */
+    public void finish() {
+        Runnable callback;
+        synchronized (this) {
+            finished = true;
+            callback = takeCallback();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Ends the body with an error, so the connection is dropped instead of sending a
+     * response that looks complete.
+     */
+    public void fail(IOException error) {
+        Runnable callback;
+        synchronized (this) {
+            failure = error;
+            callback = takeCallback();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (count == 0) {
+            if (failure != null) {
+                throw failure;
+            }
+            return finished ? -1 : 0;
+        }
+
+        int total = 0;
+        while (count > 0 && dst.hasRemaining()) {
+            int n = Math.min(dst.remaining(), Math.min(count, ring.length - head));
+            dst.put(ring, head, n);
+            head = (head + n) % ring.length;
+            count -= n;
+            total += n;
+        }
+        notifyAll();
+        return total;
+    }
+
+    @Override
+    public void notifyWhenReadable(Runnable callback) {
+        synchronized (this) {
+            if (count == 0 && !finished && failure == null) {
+                readableCallback = callback;
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        readableCallback = null;
+        notifyAll();
+    }
+
+    private Runnable takeCallback() {
+        Runnable callback = readableCallback;
+        readableCallback = null;
+        return callback;
+    }
+}
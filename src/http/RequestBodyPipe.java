@@ -0,0 +1,171 @@
+package http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request body handed to a handler while it is still arriving. The event loop offers
+ * bytes as they are read from the socket and never blocks: when the bounded buffer is
+ * full it stops reading the socket until {@link #notifyWhenWritable} fires. The handler
+ * reads on its own thread and blocks while the buffer is empty.
+ *
+ * The reader closes the pipe when it no longer needs the body; anything offered after
+ * that is accepted and dropped, so the rest of the upload can be drained.
+ */
+public final class RequestBodyPipe extends InputStream {
+
+    private final long length;
+    private final byte[] ring;
+    private int head;
+    private int count;
+
+    private boolean finished;
+    private IOException failure;
+    private boolean closed;
+    private Runnable writableCallback;
+
+    public RequestBodyPipe(int capacity, long length) {
+        this.ring = new byte[capacity];
+        this.length = length;
+    }
+
+    /**
+     * The declared length of the whole body.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Copies as many bytes as fit without waiting.
+     *
+     * @return the number of bytes taken from {@code b}
+     */
+    public synchronized int offer(byte[] b, int off, int len) {
+        if (closed) {
+            return len;
+        }
+        int total = 0;
+        while (len > 0 && count < ring.length) {
+            int tail = (head + count) % ring.length;
+            int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+            System.arraycopy(b, off, ring, tail, n);
+            count += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        if (total > 0) {
+            notifyAll();
+        }
+        return total;
+    }
+
+    /**
+     * Marks the end of the body once the buffered bytes are read.
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Ends the body with an error, e.g. because the client went away mid-upload.
+     */
+    public synchronized void fail(IOException error) {
+        if (!finished && failure == null) {
+            failure = error;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs {@code callback} once there is room again, or at once if there already is.
+     * Only the latest callback is kept.
+     */
+    public void notifyWhenWritable(Runnable callback) {
+        synchronized (this) {
+            if (count == ring.length && !closed) {
+                writableCallback = callback;
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Runnable callback;
+        int total = 0;
+        synchronized (this) {
+            while (count == 0) {
+                if (closed) {
+                    throw new IOException("Request body closed");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (finished) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading request body");
+                }
+            }
+            while (count > 0 && len > 0) {
+                int n = Math.min(len, Math.min(count, ring.length - head));
+                System.arraycopy(ring, head, b, off, n);
+                head = (head + n) % ring.length;
+                count -= n;
+                off += n;
+                len -= n;
+                total += n;
+            }
+            callback = takeCallback();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int available() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        Runnable callback;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            count = 0;
+            callback = takeCallback();
+            notifyAll();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    private Runnable takeCallback() {
+        Runnable callback = writableCallback;
+        writableCallback = null;
+        return callback;
+    }
+}
@@ -0,0 +1,236 @@
+package http;
+
+import cache.CompressedVariantCache;
+import http.model.HttpRequest;
+import http.model.HttpResponse;
+import http.model.ResponseBody;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import routing.model.Compression;
+import routing.model.Route;
+
+/**
+ * Accept-Encoding negotiation and on-the-fly gzip/deflate compression of response bodies.
+ */
+public class ResponseCompressor {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final List<String> ON_THE_FLY = Arrays.asList(GZIP, DEFLATE);
+
+    static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /**
+     * Compresses the response in place when the route allows it and the client accepts
+     * a supported encoding.
+     */
+    public static void apply(HttpRequest request, Route route, HttpResponse response) {
+        apply(request, route, response, null, response::getBody);
+    }
+
+    /**
+     * Same as {@link #apply(HttpRequest, Route, HttpResponse)}, but caches the compressed
+     * body under {@code variantKey} (see {@link CompressedVariantCache#variantKey}) so each
+     * file version is only compressed once per encoding, and takes the bytes to compress
+     * from {@code source} when no variant is cached. A response is negotiated only once:
+     * later calls leave it as the first one decided.
+     */
+    public static void apply(HttpRequest request, Route route, HttpResponse response, String variantKey,
+            Supplier<byte[]> source) {
+        if (response.isEncodingNegotiated()) {
+            return;
+        }
+        response.setEncodingNegotiated(true);
+        if (route == null || !route.isCompressionEnabled() || response.getHeader("Content-Encoding") != null) {
+            return;
+        }
+
+        Compression cfg = route.getCompression();
+        if (!isCompressible(response, cfg)) {
+            return;
+        }
+        addVary(response);
+
+        long bodyLength = response.getBodyLength();
+        if (bodyLength == 0 || (bodyLength != ResponseBody.UNKNOWN_LENGTH && bodyLength < cfg.getMinBytes())) {
+            return;
+        }
+
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            return;
+        }
+
+        if (response.isStreaming()) {
+            response.setBody(new CompressingBody(response.getStreamBody(), encoding, cfg.getLevel()));
+            response.removeHeader("Content-Length");
+            markEncoded(response, encoding);
+            return;
+        }
+
+        CompressedVariantCache cache = CompressedVariantCache.getInstance();
+        String cacheKey = variantKey != null ? variantKey + '\0' + encoding : null;
+        byte[] compressed = cacheKey != null ? cache.get(cacheKey) : null;
+        if (compressed == CompressedVariantCache.INCOMPRESSIBLE) {
+            return;
+        }
+        if (compressed == null) {
+            compressed = compress(source.get(), encoding, cfg.getLevel());
+            if (cacheKey != null) {
+                // Remember a variant that does not pay off instead of compressing it again each time
+                cache.put(cacheKey, compressed.length < bodyLength ? compressed : CompressedVariantCache.INCOMPRESSIBLE);
+            }
+        }
+
+        if (compressed.length >= bodyLength) {
+            return;
+        }
+
+        response.setBody(compressed);
+        response.addHeader("Content-Length", String.valueOf(compressed.length));
+        markEncoded(response, encoding);
+    }
+
+    private static void markEncoded(HttpResponse response, String encoding) {
+        response.addHeader("Content-Encoding", encoding);
+
+        // A compressed variant is a different representation and needs its own validator
+        String etag = response.getHeader("ETag");
+        if (etag != null && etag.endsWith("\"")) {
+            response.addHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+        }
+    }
+
+    /**
+     * Picks the best on-the-fly coding from an Accept-Encoding header, preferring gzip on
+     * equal quality. Returns null when identity should be used.
+     */
+    public static String negotiate(String acceptEncoding) {
+        List<String> accepted = acceptable(acceptEncoding, ON_THE_FLY);
+        return accepted.isEmpty() ? null : accepted.get(0);
+    }
+
+    /**
+     * Returns the candidates the client accepts with a non-zero quality, best first.
+     * Candidates with equal quality keep their order in {@code candidates}.
+     */
+    public static List<String> acceptable(String acceptEncoding, Collection<String> candidates) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<String, Double> qualities = new HashMap<>();
+        for (String part : acceptEncoding.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+
+            double q = 1.0;
+            int semi = token.indexOf(';');
+            if (semi >= 0) {
+                q = parseQuality(token.substring(semi + 1));
+                token = token.substring(0, semi).trim();
+            }
+            token = token.toLowerCase(Locale.ROOT);
+            if ("x-gzip".equals(token)) token = GZIP;
+            qualities.merge(token, q, Math::max);
+        }
+
+        Double wildcard = qualities.get("*");
+        List<String> accepted = new ArrayList<>();
+        for (String candidate : candidates) {
+            Double q = qualities.getOrDefault(candidate, wildcard);
+            if (q != null && q > 0) {
+                accepted.add(candidate);
+            }
+        }
+        accepted.sort((a, b) -> Double.compare(
+                qualities.getOrDefault(b, wildcard), qualities.getOrDefault(a, wildcard)));
+        return accepted;
+    }
+
+    public static byte[] compress(byte[] data, String encoding, int level) {
+        boolean gzip = GZIP.equals(encoding);
+        DeflaterPool pool = gzip ? DeflaterPool.RAW : DeflaterPool.ZLIB;
+        Deflater deflater = pool.acquire(level);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+            if (gzip) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, data.length);
+            }
+            return out.toByteArray();
+        } finally {
+            pool.release(deflater);
+        }
+    }
+
+    private static boolean isCompressible(HttpResponse response, Compression cfg) {
+        int code = response.getStatusCode();
+        if (code < 200 || code == 204 || code == 304) {
+            return false;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-transform")) {
+            return false;
+        }
+        return cfg.isMimeTypeAllowed(response.getHeader("Content-Type"));
+    }
+
+    public static void addVary(HttpResponse response) {
+        String vary = response.getHeader("Vary");
+        if (vary == null || vary.isEmpty()) {
+            response.addHeader("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+            response.addHeader("Vary", vary + ", Accept-Encoding");
+        }
+    }
+
+    private static double parseQuality(String params) {
+        for (String param : params.split(";")) {
+            String p = param.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1.0;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+}
@@ -0,0 +1,22 @@
+package http.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Generates a response body piece by piece. The writer calls {@link #produce} each time
+ * the previous output has reached the socket.
+ */
+@FunctionalInterface
+public interface BodyProducer {
+
+    /**
+     * Writes the next part of the body into {@code dst}, at most {@code dst.remaining()} bytes.
+     *
+     * @return true once the body is complete
+     */
+    boolean produce(ByteBuffer dst) throws IOException;
+
+    default void close() throws IOException {
+    }
+}
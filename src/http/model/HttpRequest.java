@@ -1,5 +1,6 @@
 package http.model;
 
+import http.RequestBodyPipe;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,6 +18,7 @@ public class HttpRequest {
     private final Map<String, String> cookies;
     private byte[] body;
     private File uploadedFile;
+    private RequestBodyPipe bodyPipe;
     private ConnectionHandler connectionHandler;
     private String sessionId;
     private Map<String, String> sessionData;
@@ -40,6 +42,19 @@ public class HttpRequest {
         return uploadedFile;
     }
 
+    /**
+     * The body while it is still arriving, or null once it was read in full (see
+     * {@link #getBody()} and {@link #getUploadedFile()}). A handler that receives one must
+     * close it when done with it.
+     */
+    public RequestBodyPipe getBodyPipe() {
+        return bodyPipe;
+    }
+
+    public void setBodyPipe(RequestBodyPipe bodyPipe) {
+        this.bodyPipe = bodyPipe;
+    }
+
     public void setConnectionHandler(ConnectionHandler connectionHandler) {
         this.connectionHandler = connectionHandler;
     }
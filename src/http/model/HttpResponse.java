@@ -1,25 +1,120 @@
 package http.model;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class HttpResponse {
 
+    private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0);
+
     private int statusCode;
     private String statusMessage;
     private Map<String, String> headers;
+    // Set-Cookie is the one header that cannot be folded into a single value, so each
+    // cookie is kept here and written as its own line
+    private List<String> setCookies;
     private byte[] body;
+    // Set instead of body for direct, mapped or shared read-only buffers
+    private ByteBuffer bodyBuffer;
+    // Set instead of both for bodies pulled while writing
+    private ResponseBody streamBody;
+    // Set on placeholders for responses produced off the event loop
+    private CompletableFuture<HttpResponse> deferred;
+    // Set once Accept-Encoding was negotiated, so later passes leave the body alone
+    private boolean encodingNegotiated;
 
     public HttpResponse() {
         this.headers = new HashMap<>();
         this.body = new byte[0];
     }
 
+    /**
+     * A response that is produced off the event loop, such as a running CGI script. The
+     * connection waits for {@code future} without blocking the selector; cancelling it
+     * (timeout, client gone) should stop the work.
+     */
+    public static HttpResponse deferred(CompletableFuture<HttpResponse> future) {
+        HttpResponse response = new HttpResponse();
+        response.deferred = future;
+        return response;
+    }
+
+    public boolean isDeferred() { return deferred != null; }
+    public CompletableFuture<HttpResponse> getDeferred() { return deferred; }
+
+    /**
+     * Runs {@code action} on the response once it exists: right away for ordinary
+     * responses, on completion for deferred ones. Cancelling the returned placeholder
+     * also cancels the original.
+     */
+    public HttpResponse whenReady(Consumer<HttpResponse> action) {
+        if (deferred == null) {
+            action.accept(this);
+            return this;
+        }
+        CompletableFuture<HttpResponse> source = deferred;
+        CompletableFuture<HttpResponse> next = source.thenApply(response -> {
+            action.accept(response);
+            return response;
+        });
+        next.whenComplete((response, error) -> {
+            if (next.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return deferred(next);
+    }
+
     // Getters
     public int getStatusCode() { return statusCode; }
     public String getStatusMessage() { return statusMessage; }
     public Map<String, String> getHeaders() { return headers; }
-    public byte[] getBody() { return body; }
+    public List<String> getSetCookies() { return setCookies == null ? List.of() : setCookies; }
+
+    /**
+     * Body as a byte array. Buffer-backed bodies are copied, so writers should prefer
+     * {@link #getBodyBuffer()}.
+     */
+    public byte[] getBody() {
+        if (streamBody != null) {
+            throw new IllegalStateException("Streaming body cannot be read as an array");
+        }
+        if (bodyBuffer != null) {
+            byte[] copy = new byte[bodyBuffer.remaining()];
+            bodyBuffer.duplicate().get(copy);
+            return copy;
+        }
+        return body;
+    }
+
+    /**
+     * Body as a buffer positioned for writing. Array bodies are wrapped, never copied.
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (streamBody != null) {
+            throw new IllegalStateException("Streaming body cannot be read as a buffer");
+        }
+        if (bodyBuffer != null) return bodyBuffer.duplicate();
+        return body == null ? EMPTY_BODY.duplicate() : ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Body size in bytes, or {@link ResponseBody#UNKNOWN_LENGTH} for streams of unknown size.
+     */
+    public long getBodyLength() {
+        if (streamBody != null) return streamBody.length();
+        if (bodyBuffer != null) return bodyBuffer.remaining();
+        return body == null ? 0 : body.length;
+    }
+
+    public boolean isStreaming() { return streamBody != null; }
+    public ResponseBody getStreamBody() { return streamBody; }
+    public boolean isEncodingNegotiated() { return encodingNegotiated; }
 
     // Setters
     public void setStatusCode(int statusCode) { this.statusCode = statusCode; }
@@ -29,10 +124,76 @@ public class HttpResponse {
         this.statusMessage = status.message;
     }
     public void setHeaders(Map<String, String> headers) { this.headers = headers; }
-    public void setBody(byte[] body) { this.body = body; }
+    public void setEncodingNegotiated(boolean encodingNegotiated) { this.encodingNegotiated = encodingNegotiated; }
+    public void setBody(byte[] body) {
+        this.body = body;
+        this.bodyBuffer = null;
+        this.streamBody = null;
+    }
+    public void setBody(ByteBuffer body) {
+        this.bodyBuffer = body;
+        this.body = null;
+        this.streamBody = null;
+    }
+    public void setBody(ResponseBody body) {
+        this.streamBody = body;
+        this.body = null;
+        this.bodyBuffer = null;
+    }
+
+    /**
+     * Sets a header, replacing any earlier value whatever the casing of its name, except
+     * that every {@code Set-Cookie} is kept and sent on its own line.
+     */
+    public void addHeader(String name, String value) {
+        if ("Set-Cookie".equalsIgnoreCase(name)) {
+            addSetCookie(value);
+            return;
+        }
+        String existing = headerName(name);
+        if (existing != null && !existing.equals(name)) {
+            this.headers.remove(existing);
+        }
+        this.headers.put(name, value);
+    }
+
+    /**
+     * Returns a header value, matching the name case-insensitively: CGI scripts keep
+     * their own casing.
+     */
+    public String getHeader(String name) {
+        String key = headerName(name);
+        return key != null ? this.headers.get(key) : null;
+    }
+
+    /**
+     * Removes a header whatever the casing of its name.
+     *
+     * @return the removed value, or null if there was none
+     */
+    public String removeHeader(String name) {
+        String key = headerName(name);
+        return key != null ? this.headers.remove(key) : null;
+    }
 
-    // Helper: add single header
-    public void addHeader(String name, String value) { this.headers.put(name, value); }
+    private String headerName(String name) {
+        if (this.headers.containsKey(name)) {
+            return name;
+        }
+        for (String key : this.headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    public void addSetCookie(String value) {
+        if (setCookies == null) {
+            setCookies = new ArrayList<>(2);
+        }
+        setCookies.add(value);
+    }
 
     @Override
     public String toString() {
@@ -40,7 +201,8 @@ public class HttpResponse {
                 "statusCode=" + statusCode +
                 ", statusMessage='" + statusMessage + '\'' +
                 ", headers=" + headers +
-                ", bodyLength=" + (body != null ? body.length : 0) +
+                ", setCookies=" + getSetCookies() +
+                ", bodyLength=" + getBodyLength() +
                 '}';
     }
 }
@@ -20,7 +20,16 @@ public enum HttpStatus {
     INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
     NOT_IMPLEMENTED(501, "Not Implemented"),
     BAD_GATEWAY(502, "Bad Gateway"),
-    SERVICE_UNAVAILABLE(503, "Service Unavailable");
+    SERVICE_UNAVAILABLE(503, "Service Unavailable"),
+    GATEWAY_TIMEOUT(504, "Gateway Timeout");
+
+    private static final HttpStatus[] BY_CODE = new HttpStatus[600];
+
+    static {
+        for (HttpStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
 
     public final int code;
     public final String message;
@@ -31,11 +40,6 @@ public enum HttpStatus {
     }
 
     public static HttpStatus fromCode(int code) {
-        for (HttpStatus status : values()) {
-            if (status.code == code) {
-                return status;
-            }
-        }
-        return null; // or throw exception, but for now return null
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
     }
 }
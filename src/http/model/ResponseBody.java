@@ -0,0 +1,221 @@
+package http.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body that is pulled by the writer as the socket accepts data, so it never has
+ * to be materialized in full. Bodies with an unknown {@link #length()} are sent with
+ * {@code Transfer-Encoding: chunked}.
+ *
+ * {@link #read(ByteBuffer)} is only called when the previous bytes have been written,
+ * which ties the source to the client's read rate.
+ */
+public abstract class ResponseBody implements Closeable {
+
+    public static final long UNKNOWN_LENGTH = -1;
+
+    /**
+     * Most bytes of a single response kept on the heap. Larger bodies stay in their source
+     * (a file region or spill file) and are refilled as the socket accepts data.
+     */
+    public static final int MAX_BUFFERED_BYTES = 256 * 1024;
+
+    /**
+     * @return the body size in bytes, or {@link #UNKNOWN_LENGTH}
+     */
+    public abstract long length();
+
+    /**
+     * Reads the next bytes into {@code dst}.
+     *
+     * @return the number of bytes read, 0 if nothing is available yet, or -1 at the end
+     */
+    public abstract int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Arranges for {@code callback} to run once {@link #read} may return something other
+     * than 0, so the writer can stop polling an empty source. The callback may run on any
+     * thread. The default runs it immediately; bodies fed by another thread override it.
+     */
+    public void notifyWhenReadable(Runnable callback) {
+        callback.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    public static ResponseBody of(ByteBuffer buffer) {
+        return new BufferBody(buffer.duplicate());
+    }
+
+    public static ResponseBody of(byte[] bytes) {
+        return new BufferBody(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * A region of a file, sent with {@link FileChannel#transferTo} when the framing allows.
+     * The body owns the channel and closes it with the body.
+     */
+    public static FileRegion ofFile(FileChannel channel, long position, long count) {
+        return new FileRegion(channel, position, count);
+    }
+
+    public static ResponseBody of(ReadableByteChannel channel, long length) {
+        return new ChannelBody(channel, length);
+    }
+
+    public static ResponseBody of(InputStream in, long length) {
+        return new ChannelBody(Channels.newChannel(in), length);
+    }
+
+    /**
+     * A body generated on demand; the length is unknown so it is sent chunked.
+     */
+    public static ResponseBody produced(BodyProducer producer) {
+        return new ProducedBody(producer);
+    }
+
+    private static final class BufferBody extends ResponseBody {
+        private final ByteBuffer buffer;
+        private final long length;
+
+        private BufferBody(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.length = buffer.remaining();
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), buffer.remaining());
+            dst.put(buffer.slice().limit(n));
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+    }
+
+    public static final class FileRegion extends ResponseBody {
+        private final FileChannel channel;
+        private final long end;
+        private final long count;
+        private long position;
+
+        private FileRegion(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+            this.end = position + count;
+        }
+
+        @Override
+        public long length() {
+            return count;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > end - position) {
+                dst.limit(dst.position() + (int) (end - position));
+            }
+            int n = channel.read(dst, position);
+            dst.limit(limit);
+            if (n < 0) {
+                throw new IOException("File truncated while sending");
+            }
+            position += n;
+            return n;
+        }
+
+        /**
+         * Sends as much of the remaining region as {@code target} accepts.
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            long n = channel.transferTo(position, end - position, target);
+            position += n;
+            return n;
+        }
+
+        public boolean isDone() {
+            return position >= end;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class ChannelBody extends ResponseBody {
+        private final ReadableByteChannel channel;
+        private final long length;
+
+        private ChannelBody(ReadableByteChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class ProducedBody extends ResponseBody {
+        private final BodyProducer producer;
+        private boolean done;
+
+        private ProducedBody(BodyProducer producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        public long length() {
+            return UNKNOWN_LENGTH;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (done) {
+                return -1;
+            }
+            int before = dst.position();
+            done = producer.produce(dst);
+            int n = dst.position() - before;
+            return n == 0 && done ? -1 : n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.close();
+        }
+    }
+}
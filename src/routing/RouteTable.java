@@ -0,0 +1,97 @@
+package routing;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import routing.model.Route;
+
+/**
+ * Immutable trie of route paths keyed by path segment, built once when a server block's
+ * routes are set. A lookup walks the request path segment by segment and returns the
+ * deepest route seen, so matching is O(path length) regardless of the number of routes.
+ *
+ * Matches respect segment boundaries: {@code /api} matches {@code /api} and
+ * {@code /api/users} but not {@code /apiary}. A trailing slash on a route path is
+ * ignored, and {@code /} matches every path.
+ */
+public final class RouteTable {
+
+    private static final RouteTable EMPTY = new RouteTable(new Node());
+
+    private final Node root;
+
+    private RouteTable(Node root) {
+        this.root = root;
+    }
+
+    public static RouteTable compile(List<Route> routes) {
+        if (routes == null || routes.isEmpty()) {
+            return EMPTY;
+        }
+
+        Node root = new Node();
+        for (Route route : routes) {
+            String path = route.getPath();
+            if (path == null || path.isEmpty()) {
+                continue;
+            }
+
+            Node node = root;
+            int start = 0;
+            int length = path.length();
+            while (start < length) {
+                if (path.charAt(start) == '/') {
+                    start++;
+                    continue;
+                }
+                int end = path.indexOf('/', start);
+                if (end < 0) end = length;
+                node = node.children.computeIfAbsent(path.substring(start, end), k -> new Node());
+                start = end;
+            }
+            // First definition wins, as with the previous linear scan
+            if (node.route == null) {
+                node.route = route;
+            }
+        }
+        return new RouteTable(root);
+    }
+
+    /**
+     * Returns the route with the longest matching path, or null if none matches.
+     */
+    public Route match(String path) {
+        Node node = root;
+        Route best = root.route;
+        if (path == null) {
+            return best;
+        }
+
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) end = length;
+
+            node = node.children.isEmpty() ? null : node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                best = node.route;
+            }
+            start = end;
+        }
+        return best;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>(4);
+        private Route route;
+    }
+}
@@ -1,18 +1,29 @@
 package routing;
 
+import cache.RequestCoalescer;
+import cache.ResponseCache;
 import config.model.WebServerConfig.ServerBlock;
 import handlers.CgiHandler;
 import handlers.DeleteHandler;
 import handlers.ErrorHandler;
+import handlers.InProcessHandler;
+import handlers.ProxyHandler;
 import handlers.RedirectHandler;
 import handlers.StaticHandler;
 import handlers.UploadHandler;
 import http.model.HttpRequest;
 import http.model.HttpResponse;
+import http.ResponseCompressor;
 import http.model.HttpStatus;
+import java.util.function.Supplier;
 import routing.model.Route;
 import util.SonicLogger;
 
+/**
+ * Matches a request to a route and dispatches it to the handler for that route.
+ * The router and its handlers hold no per-request state, so one instance is built per
+ * server and shared by all connections.
+ */
 public class Router {
 
     private static final SonicLogger logger = SonicLogger.getLogger(Router.class);
@@ -23,14 +34,22 @@ public class Router {
     private final ErrorHandler errorHandler;
     private final DeleteHandler deleteHandler;
     private final UploadHandler uploadHandler;
+    private final InProcessHandler inProcessHandler;
+    private final ProxyHandler proxyHandler;
+    private final ResponseCache responseCache;
+    private final RequestCoalescer coalescer;
 
     public Router() {
         this.staticHandler = new StaticHandler();
         this.cgiHandler = new CgiHandler();
         this.redirectHandler = new RedirectHandler();
-        this.errorHandler = new ErrorHandler();
+        this.errorHandler = ErrorHandler.getInstance();
         this.deleteHandler = new DeleteHandler();
         this.uploadHandler = new UploadHandler();
+        this.inProcessHandler = new InProcessHandler();
+        this.proxyHandler = new ProxyHandler();
+        this.responseCache = ResponseCache.getInstance();
+        this.coalescer = RequestCoalescer.getInstance();
     }
 
     public HttpResponse routeRequest(HttpRequest request, ServerBlock server) {
@@ -39,6 +58,31 @@ public class Router {
             return errorHandler.handle(server, HttpStatus.NOT_FOUND);
         }
 
+        Supplier<HttpResponse> loader = () -> coalescer.serve(request, server, route,
+                () -> render(request, server, route));
+        if (route.isCacheEnabled() && route.isMethodAllowed(request.getMethod())) {
+            return responseCache.serve(request, server, route, loader);
+        }
+        return loader.get();
+    }
+
+    /**
+     * True when the request's body should be handed to its handler while it arrives
+     * instead of being collected first. Only CGI and proxy routes consume a body that way.
+     */
+    public boolean streamsRequestBody(HttpRequest request, ServerBlock server) {
+        Route route = routerMatch(request, server);
+        return route != null && (route.isCgiEnabled() || route.isProxy()) && !route.isRedirect() && !route.isHandlerMounted()
+                && route.isMethodAllowed(request.getMethod());
+    }
+
+    private HttpResponse render(HttpRequest request, ServerBlock server, Route route) {
+        return dispatch(request, server, route)
+                .whenReady(response -> ResponseCompressor.apply(request, route, response));
+    }
+
+    private HttpResponse dispatch(HttpRequest request, ServerBlock server, Route route) {
+
         var method = request.getMethod();
         // System.out.println("Router.routeRequest()"+server.getRoutes()+ " " + request.getMethod());
         if (!route.isMethodAllowed(method)) {
@@ -55,6 +99,15 @@ public class Router {
             return redirectHandler.handle(route);
         }
 
+        // In-process handlers take precedence over CGI on the same route
+        if (route.isHandlerMounted()) {
+            return inProcessHandler.handle(request, server, route);
+        }
+
+        if (route.isProxy()) {
+            return proxyHandler.handle(request, server, route);
+        }
+
         // Handle CGI requests
         if (route.isCgiEnabled()) {
             return cgiHandler.handle(request, server, route);
@@ -76,30 +129,6 @@ public class Router {
     }
 
     private Route routerMatch(HttpRequest request, ServerBlock server) {
-        if (server.getRoutes() == null || server.getRoutes().isEmpty()) {
-            return null;
-        }
-
-        String requestPath = request.getPath();
-        Route bestMatch = null;
-        int longestMatch = 0;
-
-        for (Route route : server.getRoutes()) {
-            String routePath = route.getPath();
-
-            // Exact match
-            if (requestPath.equals(routePath)) {
-                return route;
-            }
-
-            // Prefix match
-            if (requestPath.startsWith(routePath)) {
-                if (routePath.length() > longestMatch) {
-                    bestMatch = route;
-                    longestMatch = routePath.length();
-                }
-            }
-        }
-        return bestMatch;
+        return server.findRoute(request.getPath());
     }
 }
@@ -0,0 +1,66 @@
+package routing.model;
+
+public class CachePolicy {
+
+    private static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private long ttlMs;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long staleWhileRevalidateMs;
+    private boolean varyByCookie;
+
+    /**
+     * How long a stored response is served without re-running the handler.
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Upper bound on the bytes stored for the route; least recently used entries go first.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * How long past the TTL an entry may still be served while one refresh runs.
+     */
+    public long getStaleWhileRevalidateMs() {
+        return staleWhileRevalidateMs;
+    }
+
+    public void setStaleWhileRevalidateMs(long staleWhileRevalidateMs) {
+        this.staleWhileRevalidateMs = staleWhileRevalidateMs;
+    }
+
+    /**
+     * Requests that carry cookies bypass the cache unless this is set, in which case the
+     * Cookie header becomes part of the key and every cookie set gets its own entries.
+     */
+    public boolean isVaryByCookie() {
+        return varyByCookie;
+    }
+
+    public void setVaryByCookie(boolean varyByCookie) {
+        this.varyByCookie = varyByCookie;
+    }
+
+    public boolean isEnabled() {
+        return ttlMs > 0 && maxBytes > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CachePolicy{ttlMs=" + ttlMs + ", maxBytes=" + maxBytes
+                + ", staleWhileRevalidateMs=" + staleWhileRevalidateMs + ", varyByCookie=" + varyByCookie + "}";
+    }
+}
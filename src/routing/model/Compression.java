@@ -0,0 +1,128 @@
+package routing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public class Compression {
+
+    private static final List<String> DEFAULT_MIME_TYPES = Arrays.asList(
+            "text/html", "text/plain", "text/css", "text/xml",
+            "application/javascript", "application/json", "application/xml", "image/svg+xml");
+
+    private static final int DEFAULT_MIN_BYTES = 1024;
+
+    // Server-side preference when the client rates several codings equally
+    private static final List<String> ENCODING_PREFERENCE = Arrays.asList("br", "zstd", "gzip", "deflate");
+
+    private boolean enabled;
+    private Set<String> mimeTypes = new LinkedHashSet<>(DEFAULT_MIME_TYPES);
+    private int minBytes = DEFAULT_MIN_BYTES;
+    private int level = -1;
+    private boolean precompressed;
+    private Map<String, String> sidecars = defaultSidecars();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Set<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    public void setMimeTypes(List<String> mimeTypes) {
+        this.mimeTypes = new LinkedHashSet<>();
+        for (String type : mimeTypes) {
+            this.mimeTypes.add(type.trim().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    public void setMinBytes(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Deflate level 1-9, or -1 for the zlib default.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public boolean isPrecompressed() {
+        return precompressed;
+    }
+
+    public void setPrecompressed(boolean precompressed) {
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Encoding to file suffix for precompressed sidecars, ordered by server preference.
+     */
+    public Map<String, String> getSidecars() {
+        return sidecars;
+    }
+
+    public void setSidecars(Map<String, String> sidecars) {
+        Map<String, String> normalized = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : sidecars.entrySet()) {
+            normalized.put(entry.getKey().trim().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+
+        List<String> encodings = new ArrayList<>(normalized.keySet());
+        encodings.sort(Comparator.comparingInt(Compression::preferenceRank).thenComparing(e -> e));
+
+        this.sidecars = new LinkedHashMap<>();
+        for (String encoding : encodings) {
+            this.sidecars.put(encoding, normalized.get(encoding));
+        }
+    }
+
+    /**
+     * Matches the media type part of a Content-Type header against the allowlist.
+     */
+    public boolean isMimeTypeAllowed(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semi = contentType.indexOf(';');
+        String mime = (semi >= 0 ? contentType.substring(0, semi) : contentType).trim().toLowerCase(Locale.ROOT);
+        return mimeTypes.contains(mime);
+    }
+
+    private static int preferenceRank(String encoding) {
+        int idx = ENCODING_PREFERENCE.indexOf(encoding);
+        return idx >= 0 ? idx : ENCODING_PREFERENCE.size();
+    }
+
+    private static Map<String, String> defaultSidecars() {
+        Map<String, String> sidecars = new LinkedHashMap<>();
+        sidecars.put("br", ".br");
+        sidecars.put("gzip", ".gz");
+        return sidecars;
+    }
+
+    @Override
+    public String toString() {
+        return "Compression{enabled=" + enabled + ", minBytes=" + minBytes
+                + ", mimeTypes=" + mimeTypes + ", precompressed=" + precompressed + "}";
+    }
+}
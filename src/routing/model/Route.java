@@ -1,20 +1,33 @@
 package routing.model;
 
 import java.util.List;
+import java.util.Locale;
 
 import handlers.model.Cgi;
+import handlers.model.HandlerMount;
+import handlers.model.Proxy;
 import handlers.model.Upload;
 
 public class Route {
 
+    // Allowed methods as a bitset (see methodBit), so method checks are a single AND
+    private static final int ALL_METHODS = -1;
+
     private String path;
     private List<String> methods;
+    private int allowedMethods = ALL_METHODS;
     private String root;
     private String index;
     private boolean autoIndex;
     private Upload upload;
     private Cgi cgi;
     private Redirect redirect;
+    private Compression compression;
+    private CachePolicy cache;
+    private HandlerMount handler;
+    private Proxy proxy;
+    // Null until configured, which leaves the choice to the kind of route
+    private Boolean coalesce;
 
     // Getters and Setters
     public String getPath() {
@@ -31,6 +44,7 @@ public class Route {
 
     public void setMethods(List<String> methods) {
         this.methods = methods;
+        this.allowedMethods = methodMask(methods);
     }
 
     public String getRoot() {
@@ -81,12 +95,94 @@ public class Route {
         this.redirect = redirect;
     }
 
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public CachePolicy getCache() {
+        return cache;
+    }
+
+    public void setCache(CachePolicy cache) {
+        this.cache = cache;
+    }
+
+    public HandlerMount getHandler() {
+        return handler;
+    }
+
+    public void setHandler(HandlerMount handler) {
+        this.handler = handler;
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    public void setProxy(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Whether identical concurrent GETs may share one in-flight response. On by default
+     * only where CGI serves the route, since the CGI environment exposes no request
+     * headers beyond those in the coalescing key; proxy and in-process handler routes see
+     * every header and must opt in. Turn it off for scripts whose GETs have side effects.
+     */
+    public boolean isCoalesce() {
+        if (coalesce != null) {
+            return coalesce;
+        }
+        return isCgiEnabled() && !isHandlerMounted() && !isProxy();
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
     // Utility methods
     public boolean isMethodAllowed(String method) {
-        if (methods == null || methods.isEmpty()) {
+        if (allowedMethods == ALL_METHODS) {
             return true;
         }
-        return methods.stream().anyMatch(m -> m.equalsIgnoreCase(method));
+        int bit = methodBit(method);
+        return bit != 0 && (allowedMethods & bit) != 0;
+    }
+
+    private static int methodMask(List<String> methods) {
+        if (methods == null || methods.isEmpty()) {
+            return ALL_METHODS;
+        }
+        int mask = 0;
+        for (String method : methods) {
+            mask |= methodBit(method);
+        }
+        return mask;
+    }
+
+    private static int methodBit(String method) {
+        if (method == null) {
+            return 0;
+        }
+        return switch (method) {
+            case "GET" -> 1;
+            case "HEAD" -> 1 << 1;
+            case "POST" -> 1 << 2;
+            case "PUT" -> 1 << 3;
+            case "DELETE" -> 1 << 4;
+            case "PATCH" -> 1 << 5;
+            case "OPTIONS" -> 1 << 6;
+            case "TRACE" -> 1 << 7;
+            case "CONNECT" -> 1 << 8;
+            default -> {
+                String upper = method.toUpperCase(Locale.ROOT);
+                yield upper.equals(method) ? 0 : methodBit(upper);
+            }
+        };
     }
 
     public boolean isUploadEnabled() {
@@ -97,10 +193,30 @@ public class Route {
         return cgi != null && cgi.isEnabled();
     }
 
+    public boolean isHandlerMounted() {
+        return handler != null && handler.getName() != null;
+    }
+
+    public boolean isProxy() {
+        return proxy != null;
+    }
+
     public boolean isRedirect() {
         return redirect != null;
     }
 
+    public boolean isCompressionEnabled() {
+        return compression != null && compression.isEnabled();
+    }
+
+    public boolean isCacheEnabled() {
+        return cache != null && cache.isEnabled();
+    }
+
+    public boolean isPrecompressedEnabled() {
+        return compression != null && compression.isPrecompressed();
+    }
+
     @Override
     public String toString() {
         return "Route{path='" + path + "', methods=" + methods
@@ -3,19 +3,20 @@ package server;
 import config.model.WebServerConfig.ServerBlock;
 import handlers.ErrorHandler;
 import http.ParseRequest;
+import http.RequestBodyPipe;
 import http.model.HttpRequest;
 import http.model.HttpResponse;
 import http.model.HttpStatus;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import routing.Router;
 import session.SessionManager;
 import util.SonicLogger;
@@ -26,13 +27,18 @@ public class ConnectionHandler {
 
     private static final int MAX_HEADER_SIZE = 16_384;      // 16KB
     private static final int READ_BUFFER_SIZE = 8_192;      // 8KB
+    // Request body bytes held between the socket and a handler reading it as it arrives
+    private static final int BODY_PIPE_CAPACITY = 64 * 1024;
+
+    // Owned by the event loop thread and drained into a byte[] right after every read,
+    // so one buffer serves all connections instead of 8KB each
+    private static final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 
     // Network
     private final SocketChannel channel;
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
-    private ByteBuffer writeBuffer;
+    private final ResponseWriter responseWriter;
     private int lastReadBytes;
-    private int lastWriteBytes;
+    private long lastWriteBytes;
 
     // Configuration
     private final Server.PortContext portContext;
@@ -61,7 +67,13 @@ public class ConnectionHandler {
     // Response
     private HttpRequest httpRequest;
     private HttpResponse httpResponse;
+    // Response still being produced off the event loop
+    private CompletableFuture<HttpResponse> deferredResponse;
     private File tempBodyFile = null;
+    // Body handed to the handler while it arrives, and how much of it is still to come
+    private RequestBodyPipe bodyPipe;
+    private long bodyRemaining;
+    private boolean responseSent;
 
     private enum ProcessingState {
         READING_HEADERS,
@@ -70,27 +82,43 @@ public class ConnectionHandler {
         READING_CHUNK_SIZE,
         READING_CHUNK_DATA,
         READING_CHUNK_TRAILERS,
+        STREAMING_BODY,
         REQUEST_COMPLETE,
+        AWAITING_RESPONSE,
         ERROR
     }
 
     public ConnectionHandler(SocketChannel channel, Server.PortContext portContext) {
         this.channel = channel;
+        this.responseWriter = new ResponseWriter(channel);
         this.portContext = portContext;
         this.server = portContext != null ? portContext.getDefaultServer() : null;
-        this.router = new Router();
-        this.errorHandler = new ErrorHandler();
+        this.router = portContext != null ? portContext.getRouter() : new Router();
+        this.errorHandler = ErrorHandler.getInstance();
     }
 
     public ServerBlock getServer() {
         return server;
     }
 
+    /**
+     * The client's IP address, or null for clients of a Unix socket listener.
+     */
+    public String getRemoteAddress() {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress().getHostAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Read data from socket and process based on current state.
      * Returns true when request is fully buffered/decoded and ready for dispatchRequest().
      */
     public boolean read() throws IOException {
+        readBuffer.clear();
         int bytesRead = channel.read(readBuffer);
         lastReadBytes = bytesRead;
 
@@ -115,8 +143,10 @@ public class ConnectionHandler {
                 case READING_HEADERS -> readHeaders(data);
                 case READING_BODY_TO_MEMORY, READING_BODY_TO_FILE,
                         READING_CHUNK_SIZE, READING_CHUNK_DATA, READING_CHUNK_TRAILERS -> readBody(data);
-                case REQUEST_COMPLETE -> true;
-                case ERROR -> false;
+                case STREAMING_BODY -> streamBody(data);
+                // Already dispatched: the connection closes after the response, so later
+                // bytes are dropped and only an EOF (handled above) matters
+                case REQUEST_COMPLETE, AWAITING_RESPONSE, ERROR -> false;
             };
         } catch (BodyReceiver.TrailerTooLargeException e) {
             logger.error("Error processing request", e);
@@ -156,6 +186,11 @@ public class ConnectionHandler {
         if (state == ProcessingState.REQUEST_COMPLETE) {
             return true;
         }
+        if (state == ProcessingState.STREAMING_BODY) {
+            // Dispatch now; these bytes go into the pipe right after
+            pending = initialBodyBytes;
+            return true;
+        }
 
         if (initialBodyBytes.length > 0) {
             return readBody(initialBodyBytes);
@@ -287,6 +322,10 @@ public class ConnectionHandler {
             return true;
         }
 
+        if (startStreamingBody()) {
+            return true;
+        }
+
         bodyReceiver = new BodyReceiver(server.getClientMaxBodyBytes());
         bodyReceiver.startFixedLength(contentLength);
         state = bodyReceiver.isUsingFile() ? ProcessingState.READING_BODY_TO_FILE
@@ -294,6 +333,59 @@ public class ConnectionHandler {
         return true;
     }
 
+    /**
+     * Hands a fixed-length body to the handler as it arrives when the route wants that,
+     * instead of collecting it in memory or a temp file first. Chunked bodies are always
+     * collected, since CGI needs the length up front.
+     */
+    private boolean startStreamingBody() throws IOException {
+        HttpRequest request;
+        try {
+            request = ParseRequest.processRequest(requestBytesBuilder.build(rawHeaderBytes, false, 0, new byte[0]));
+        } catch (Exception e) {
+            // Let the regular path collect the body and report the error
+            return false;
+        }
+        if (!router.streamsRequestBody(request, server)) {
+            return false;
+        }
+
+        httpRequest = request;
+        bodyPipe = new RequestBodyPipe(BODY_PIPE_CAPACITY, contentLength);
+        httpRequest.setBodyPipe(bodyPipe);
+        bodyRemaining = contentLength;
+        state = ProcessingState.STREAMING_BODY;
+        return true;
+    }
+
+    private boolean streamBody(byte[] data) {
+        int take = (int) Math.min(data.length, bodyRemaining);
+        int accepted = bodyPipe.offer(data, 0, take);
+        bodyRemaining -= accepted;
+        if (accepted < take) {
+            // Pipe full: keep the rest and stop reading until the handler catches up
+            pending = Arrays.copyOfRange(data, accepted, take);
+        }
+        if (bodyRemaining == 0) {
+            bodyPipe.finish();
+            state = deferredResponse != null ? ProcessingState.AWAITING_RESPONSE : ProcessingState.REQUEST_COMPLETE;
+        }
+        return false;
+    }
+
+    /**
+     * Feeds the bytes held back while the pipe was full. Runs on the event loop once the
+     * handler has made room.
+     */
+    public void resumeBody() {
+        if (state != ProcessingState.STREAMING_BODY) {
+            return;
+        }
+        byte[] data = pending;
+        pending = new byte[0];
+        streamBody(data);
+    }
+
     private boolean finalizeRequestBytes() throws IOException {
         tempBodyFile = bodyReceiver.getTempFile();
         boolean bodyInFile = tempBodyFile != null && tempBodyFile.exists();
@@ -313,7 +405,9 @@ public class ConnectionHandler {
 
     public void dispatchRequest() {
         try {
-            httpRequest = ParseRequest.processRequest(headerBuffer.toByteArray());
+            if (httpRequest == null) {
+                httpRequest = ParseRequest.processRequest(headerBuffer.toByteArray());
+            }
             httpRequest.setConnectionHandler(this);
 
             if (tempBodyFile != null && tempBodyFile.exists()) {
@@ -322,20 +416,84 @@ public class ConnectionHandler {
 
             SessionManager.getInstance().attachSession(httpRequest);
             httpResponse = router.routeRequest(httpRequest, server);
+            if (httpResponse.isDeferred()) {
+                awaitResponse(httpResponse.getDeferred());
+                resumeBody();
+                return;
+            }
             SessionManager.getInstance().appendSessionCookie(httpRequest, httpResponse);
         } catch (Exception ex) {
             logger.error("Error processing request", ex);
             httpResponse = errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR);
         }
+        if (bodyPipe != null) {
+            // Answered on the spot: nobody reads the rest of the body, it is only drained
+            bodyPipe.close();
+            resumeBody();
+        }
+        prepareResponseBuffer();
+    }
+
+    private void awaitResponse(CompletableFuture<HttpResponse> future) {
+        if (state != ProcessingState.STREAMING_BODY) {
+            state = ProcessingState.AWAITING_RESPONSE;
+        }
+        deferredResponse = future;
+        future.whenComplete((response, error) ->
+                EventLoop.execute(() -> completeResponse(future, response, error)));
+    }
+
+    /**
+     * Runs on the event loop once a deferred response is ready.
+     */
+    private void completeResponse(CompletableFuture<HttpResponse> future, HttpResponse response, Throwable error) {
+        if (deferredResponse != future) {
+            // Timed out or closed in the meantime; nobody will send this response
+            discard(response);
+            return;
+        }
+        deferredResponse = null;
+        if (state != ProcessingState.STREAMING_BODY) {
+            state = ProcessingState.REQUEST_COMPLETE;
+        }
+
+        if (error != null || response == null) {
+            logger.error("Error producing response", error);
+            httpResponse = errorHandler.handle(server, HttpStatus.INTERNAL_SERVER_ERROR);
+        } else {
+            httpResponse = response;
+            SessionManager.getInstance().appendSessionCookie(httpRequest, httpResponse);
+        }
         prepareResponseBuffer();
+        EventLoop.responseReady(channel);
+    }
+
+    private void cancelDeferredResponse() {
+        if (deferredResponse != null) {
+            CompletableFuture<HttpResponse> future = deferredResponse;
+            deferredResponse = null;
+            future.cancel(true);
+        }
+    }
+
+    private static void discard(HttpResponse response) {
+        if (response != null && response.isStreaming()) {
+            try {
+                response.getStreamBody().close();
+            } catch (IOException e) {
+                logger.error("Error closing abandoned response body", e);
+            }
+        }
     }
 
     public boolean write() throws IOException {
-        if (writeBuffer == null) return true;
+        if (!responseWriter.isPrepared()) return true;
 
-        lastWriteBytes = channel.write(writeBuffer);
+        boolean finished = responseWriter.write();
+        lastWriteBytes = responseWriter.getLastWriteBytes();
 
-        if (!writeBuffer.hasRemaining()) {
+        if (finished) {
+            responseSent = true;
             // After writing response, cleanup and close connection (your server uses Connection: close)
             cleanupStreamsOnly();
             if (state == ProcessingState.ERROR) {
@@ -347,7 +505,10 @@ public class ConnectionHandler {
     }
 
     public void close() throws IOException {
+        cancelDeferredResponse();
+        failBodyPipe();
         cleanupStreamsOnly();
+        responseWriter.reset();
         try (channel) {
             // no-op; try-with-resources ensures close
         }
@@ -357,10 +518,67 @@ public class ConnectionHandler {
         return lastReadBytes;
     }
 
-    public int getLastWriteBytes() {
+    public long getLastWriteBytes() {
         return lastWriteBytes;
     }
 
+    /**
+     * True when a response (including an error response) is waiting to be written.
+     */
+    public boolean hasPendingResponse() {
+        return responseWriter.isPrepared();
+    }
+
+    /**
+     * True while the dispatched request's response is produced off the event loop.
+     */
+    public boolean isAwaitingResponse() {
+        return state == ProcessingState.AWAITING_RESPONSE;
+    }
+
+    /**
+     * True when the response is partly written and its body has nothing ready to send.
+     */
+    public boolean isWaitingForBody() {
+        return responseWriter.isPrepared() && responseWriter.isWaitingForSource();
+    }
+
+    public void notifyWhenBodyReadable(Runnable callback) {
+        responseWriter.notifyWhenReadable(callback);
+    }
+
+    /**
+     * True while the request body is still arriving after the request was dispatched.
+     */
+    public boolean isStreamingBody() {
+        return state == ProcessingState.STREAMING_BODY;
+    }
+
+    /**
+     * True when the request body was handed to the handler while arriving.
+     */
+    public boolean hasStreamedBody() {
+        return bodyPipe != null;
+    }
+
+    /**
+     * True while the handler has not made room for the body bytes already read.
+     */
+    public boolean isBodyPaused() {
+        return state == ProcessingState.STREAMING_BODY && pending.length > 0;
+    }
+
+    public void notifyWhenBodyWritable(Runnable callback) {
+        bodyPipe.notifyWhenWritable(callback);
+    }
+
+    /**
+     * True once the whole response has been written.
+     */
+    public boolean isResponseSent() {
+        return responseSent;
+    }
+
     public boolean isReadingHeaders() {
         return state == ProcessingState.READING_HEADERS;
     }
@@ -383,6 +601,8 @@ public class ConnectionHandler {
     }
 
     private void handleError(HttpStatus status) {
+        cancelDeferredResponse();
+        failBodyPipe();
         try {
             // Build error response, but DO NOT busy-loop write here (NIO-friendly).
             httpResponse = errorHandler.handle(server, status);
@@ -394,29 +614,16 @@ public class ConnectionHandler {
         }
     }
 
-    private void prepareResponseBuffer() {
-        byte[] body = (httpResponse.getBody() == null) ? new byte[0] : httpResponse.getBody();
-
-        String reason = httpResponse.getStatusMessage();
-        if (reason == null || reason.isEmpty()) {
-            HttpStatus statusEnum = resolveStatus(httpResponse.getStatusCode());
-            reason = (statusEnum != null) ? statusEnum.message : "OK";
+    private void failBodyPipe() {
+        if (bodyPipe != null) {
+            bodyPipe.fail(new IOException("Request body aborted"));
         }
+    }
 
-        httpResponse.getHeaders().putIfAbsent(
-                "Date",
-                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
-        httpResponse.getHeaders().putIfAbsent("Connection", "close");
-        httpResponse.getHeaders().putIfAbsent("Content-Length", String.valueOf(body.length));
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/1.1 ").append(httpResponse.getStatusCode()).append(" ").append(reason).append("\r\n");
-        httpResponse.getHeaders().forEach((k, v) -> sb.append(k).append(": ").append(v).append("\r\n"));
-        sb.append("\r\n");
-
-        byte[] headers = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
-        writeBuffer = ByteBuffer.allocate(headers.length + body.length);
-        writeBuffer.put(headers).put(body).flip();
+    private void prepareResponseBuffer() {
+        // Chunked framing needs HTTP/1.1; older clients read until the connection closes
+        boolean chunkedAllowed = httpRequest == null || !"HTTP/1.0".equals(httpRequest.getHttpVersion());
+        responseWriter.prepare(httpResponse, chunkedAllowed);
     }
 
     private void cleanupStreamsOnly() {
@@ -439,13 +646,6 @@ public class ConnectionHandler {
         }
     }
 
-    private HttpStatus resolveStatus(int code) {
-        for (HttpStatus status : HttpStatus.values()) {
-            if (status.code == code) return status;
-        }
-        return null;
-    }
-
     private static byte[] concat(byte[] a, byte[] b) {
         if (a == null || a.length == 0) return (b == null ? new byte[0] : b);
         if (b == null || b.length == 0) return a;
@@ -1,6 +1,8 @@
 package server;
 
 import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -8,8 +10,11 @@ import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 import config.model.WebServerConfig;
+import util.Metrics;
 import util.SonicLogger;
 
 public class EventLoop {
@@ -17,19 +22,37 @@ public class EventLoop {
     private static final SonicLogger logger = SonicLogger.getLogger(EventLoop.class);
     private static final long HEADER_TIMEOUT_MS = 10_000;
     private static final long DEFAULT_BODY_IDLE_TIMEOUT_MS = 15 * 60 * 1000;
+    private static final long METRICS_LOG_INTERVAL_MS = 60_000;
+    // Send rate is judged over windows this long, so short stalls are tolerated
+    private static final long SEND_RATE_WINDOW_MS = 10_000;
     private static final Map<SocketChannel, ConnActivity> connectionActivity = new HashMap<>();
+    // Interest-op changes requested while handling events, applied once before the next select
+    private static final Map<SelectionKey, Integer> pendingInterestOps = new HashMap<>();
+    private static final LongAdder slowClientCloses = Metrics.counter("outbound.slowClientCloses");
+    // Work handed back to the loop thread by handlers running elsewhere
+    private static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private static long lastMetricsLogMs = System.currentTimeMillis();
+    private static long minSendRate;
+    private static volatile Selector activeSelector;
 
     public static void loop(Selector selector, WebServerConfig config) throws IOException {
         logger.info("EventLoop started thread:" + Thread.currentThread().getName());
 
         long bodyIdleTimeoutMs = config.getTimeouts() > 0 ? config.getTimeouts() : DEFAULT_BODY_IDLE_TIMEOUT_MS;
-        logger.info("Timeouts configured: header=" + HEADER_TIMEOUT_MS + "ms, bodyIdle=" + bodyIdleTimeoutMs + "ms");
+        minSendRate = config.getMinSendRate();
+        activeSelector = selector;
+        logger.info("Timeouts configured: header=" + HEADER_TIMEOUT_MS + "ms, bodyIdle=" + bodyIdleTimeoutMs
+                + "ms, minSendRate=" + minSendRate + "B/s");
 
         while (true) {
             checkTimeouts(selector, bodyIdleTimeoutMs);
+            logMetrics();
+            applyInterestOps();
 
             // Wait for events (1 second timeout)
             selector.select(1000);
+            HeaderSerializer.updateDate(System.currentTimeMillis());
+            runTasks();
 
             // Get all events that happened
             Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
@@ -61,6 +84,40 @@ public class EventLoop {
         }
     }
 
+    /**
+     * Queues {@code task} to run on the event loop thread and wakes the selector. Safe to
+     * call from any thread; this is how work finished elsewhere touches connections.
+     */
+    public static void execute(Runnable task) {
+        tasks.add(task);
+        Selector selector = activeSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private static void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Event loop task failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Starts writing a response that became ready after its request was dispatched.
+     * Must run on the event loop thread.
+     */
+    static void responseReady(SocketChannel channel) {
+        SelectionKey key = channel.keyFor(activeSelector);
+        if (key != null && key.isValid()) {
+            writeResponse(key);
+        }
+    }
+
     private static void checkTimeouts(Selector selector, long bodyIdleTimeoutMs) {
         long currentTime = System.currentTimeMillis();
         Iterator<Map.Entry<SocketChannel, ConnActivity>> iter = connectionActivity.entrySet().iterator();
@@ -82,21 +139,91 @@ public class EventLoop {
                 continue;
             }
 
+            if (handler.hasPendingResponse()) {
+                if (handler.isWaitingForBody()) {
+                    // The producer is the bottleneck, not the client: restart the rate
+                    // window and only give up if the body stalls completely
+                    activity.sendWindowStartMs = 0;
+                    activity.sendWindowBytes = 0;
+                    if (currentTime - activity.lastActivityMs > bodyIdleTimeoutMs) {
+                        logger.info("Closing stalled response: " + peer(channel));
+                        iter.remove();
+                        closeConnection(key);
+                    }
+                    continue;
+                }
+                if (isSlowReader(activity, currentTime, bodyIdleTimeoutMs)) {
+                    logger.info("Closing slow client: " + peer(channel));
+                    slowClientCloses.increment();
+                    iter.remove();
+                    closeConnection(key);
+                }
+                continue;
+            }
+
             long timeoutMs = handler.isReadingHeaders() ? HEADER_TIMEOUT_MS : bodyIdleTimeoutMs;
             long elapsed = currentTime - activity.lastActivityMs;
 
             if (elapsed > timeoutMs) {
-                logger.info("Timeout for client: " + channel.socket().getRemoteSocketAddress() +
+                logger.info("Timeout for client: " + peer(channel) +
                         " (idle for " + elapsed + "ms)");
 
-                handler.forceError(http.model.HttpStatus.REQUEST_TIMEOUT);
-                key.interestOps(SelectionKey.OP_WRITE);
+                handler.forceError(handler.isAwaitingResponse()
+                        ? http.model.HttpStatus.GATEWAY_TIMEOUT
+                        : http.model.HttpStatus.REQUEST_TIMEOUT);
+                setInterestOps(key, SelectionKey.OP_WRITE);
 
                 iter.remove();
             }
         }
     }
 
+    /**
+     * A response is abandoned when the client stops reading entirely or, over a full
+     * window, accepts less than the configured minimum rate (slow-read protection).
+     */
+    private static boolean isSlowReader(ConnActivity activity, long now, long idleTimeoutMs) {
+        if (now - activity.lastActivityMs > idleTimeoutMs) {
+            return true;
+        }
+        if (activity.sendWindowStartMs == 0) {
+            return false;
+        }
+        long windowMs = now - activity.sendWindowStartMs;
+        if (windowMs < SEND_RATE_WINDOW_MS) {
+            return false;
+        }
+        boolean slow = minSendRate > 0 && activity.sendWindowBytes * 1000 / windowMs < minSendRate;
+        activity.sendWindowStartMs = now;
+        activity.sendWindowBytes = 0;
+        return slow;
+    }
+
+    private static void logMetrics() {
+        long now = System.currentTimeMillis();
+        if (now - lastMetricsLogMs < METRICS_LOG_INTERVAL_MS) {
+            return;
+        }
+        lastMetricsLogMs = now;
+
+        String metrics = Metrics.format();
+        if (!metrics.isEmpty()) {
+            logger.info("Metrics: " + metrics);
+        }
+    }
+
+    /**
+     * The client address for log lines. Unix domain peers have no address of their own.
+     */
+    private static Object peer(SocketChannel channel) {
+        try {
+            Object address = channel.getRemoteAddress();
+            return address instanceof UnixDomainSocketAddress ? "unix:" + channel.getLocalAddress() : address;
+        } catch (IOException e) {
+            return "(closed)";
+        }
+    }
+
     private static void handleAccept(SelectionKey key, Selector selector) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         Server.PortContext portContext = (Server.PortContext) key.attachment();
@@ -108,7 +235,9 @@ public class EventLoop {
 
         // Configure client channel
         clientChannel.configureBlocking(false);
-        clientChannel.socket().setTcpNoDelay(true); // Send data immediately
+        if (!portContext.isUnix()) {
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Send data immediately
+        }
 
         // Register for READ events and attach a Handler
         SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
@@ -127,13 +256,33 @@ public class EventLoop {
 
         try {
             boolean requestComplete = handler.read();
+            if (handler.getLastReadBytes() < 0) {
+                // Client went away; this also cancels a response still being produced
+                closeConnection(key);
+                return;
+            }
             if (handler.getLastReadBytes() > 0) {
                 touchActivity(channel);
             }
 
             if (requestComplete) {
                 handler.dispatchRequest();
-                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (handler.hasStreamedBody()) {
+                continueStreaming(key, handler);
+                return;
+            }
+            if (requestComplete) {
+                if (handler.isAwaitingResponse()) {
+                    // Keep reading only to notice the client leaving; the response
+                    // resumes via responseReady
+                    setInterestOps(key, SelectionKey.OP_READ);
+                    return;
+                }
+            }
+            if (key.isValid() && handler.hasPendingResponse()) {
+                // Most responses fit in the socket send buffer, so try before waiting for OP_WRITE
+                writeResponse(key);
             }
         } catch (IOException e) {
             // Client disconnected or error reading
@@ -145,6 +294,43 @@ public class EventLoop {
         }
     }
 
+    /**
+     * Sets up the next step for a connection whose request body is handed to its handler
+     * as it arrives. While the body is still coming the socket is read, unless the handler
+     * has fallen behind, and a response that is already ready is written at the same time.
+     */
+    private static void continueStreaming(SelectionKey key, ConnectionHandler handler) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (!handler.isStreamingBody()) {
+            if (handler.isResponseSent()) {
+                closeConnection(key);
+            } else if (handler.isAwaitingResponse()) {
+                setInterestOps(key, SelectionKey.OP_READ);
+            } else if (handler.hasPendingResponse()) {
+                writeResponse(key);
+            }
+            return;
+        }
+
+        int ops = 0;
+        if (handler.isBodyPaused()) {
+            handler.notifyWhenBodyWritable(() -> execute(() -> {
+                if (key.isValid()) {
+                    handler.resumeBody();
+                    continueStreaming(key, handler);
+                }
+            }));
+        } else {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (handler.hasPendingResponse() && !handler.isResponseSent() && !handler.isWaitingForBody()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        setInterestOps(key, ops);
+    }
+
     private static void closeConnection(SelectionKey key) {
         ConnectionHandler handler = (ConnectionHandler) key.attachment();
         if (handler != null) {
@@ -160,6 +346,7 @@ public class EventLoop {
 
         try {
             connectionActivity.remove((SocketChannel) key.channel());
+            pendingInterestOps.remove(key);
             key.channel().close();
         } catch (IOException e) {
             logger.error("Error closing channel", e);
@@ -173,16 +360,42 @@ public class EventLoop {
             key.cancel();
             return;
         }
+        writeResponse(key);
+    }
 
+    /**
+     * Writes as much of the pending response as the socket accepts. Closes the connection
+     * when done, otherwise waits for OP_WRITE to continue.
+     */
+    private static void writeResponse(SelectionKey key) {
+        ConnectionHandler handler = (ConnectionHandler) key.attachment();
         SocketChannel channel = (SocketChannel) key.channel();
 
         try {
             boolean finished = handler.write();
-            if (handler.getLastWriteBytes() > 0) {
-                touchActivity(channel);
-            }
-            if (finished) {
+            recordSent(channel, handler.getLastWriteBytes());
+            if (handler.isStreamingBody()) {
+                // Answered before the upload ended: keep reading it, and close once drained
+                if (!finished && handler.isWaitingForBody()) {
+                    handler.notifyWhenBodyReadable(() -> execute(() -> {
+                        if (key.isValid()) {
+                            writeResponse(key);
+                        }
+                    }));
+                }
+                continueStreaming(key, handler);
+            } else if (finished) {
                 closeConnection(key);
+            } else if (handler.isWaitingForBody()) {
+                // Nothing to send until the body's producer catches up
+                setInterestOps(key, 0);
+                handler.notifyWhenBodyReadable(() -> execute(() -> {
+                    if (key.isValid()) {
+                        writeResponse(key);
+                    }
+                }));
+            } else {
+                setInterestOps(key, SelectionKey.OP_WRITE);
             }
         } catch (IOException e) {
             try {
@@ -192,6 +405,39 @@ public class EventLoop {
         }
     }
 
+    private static void setInterestOps(SelectionKey key, int ops) {
+        pendingInterestOps.put(key, ops);
+    }
+
+    private static void applyInterestOps() {
+        if (pendingInterestOps.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<SelectionKey, Integer> entry : pendingInterestOps.entrySet()) {
+            SelectionKey key = entry.getKey();
+            int ops = entry.getValue();
+            if (key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+        pendingInterestOps.clear();
+    }
+
+    private static void recordSent(SocketChannel channel, long bytes) {
+        ConnActivity activity = connectionActivity.get(channel);
+        if (activity == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (activity.sendWindowStartMs == 0) {
+            activity.sendWindowStartMs = now;
+        }
+        if (bytes > 0) {
+            activity.lastActivityMs = now;
+            activity.sendWindowBytes += bytes;
+        }
+    }
+
     private static void touchActivity(SocketChannel channel) {
         ConnActivity activity = connectionActivity.get(channel);
         if (activity != null) {
@@ -203,6 +449,8 @@ public class EventLoop {
 
     private static final class ConnActivity {
         private long lastActivityMs;
+        private long sendWindowStartMs;
+        private long sendWindowBytes;
 
         private ConnActivity(long lastActivityMs) {
             this.lastActivityMs = lastActivityMs;
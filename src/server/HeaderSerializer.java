@@ -0,0 +1,205 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import http.model.HttpResponse;
+import http.model.HttpStatus;
+
+/**
+ * Writes the status line and headers of a response straight into a pooled byte buffer.
+ *
+ * Status lines and common header names are encoded once at class load, and the
+ * {@code Date} value is re-encoded at most once per second by the event loop, so a
+ * response costs a few bulk puts plus the bytes of its own header values.
+ */
+public final class HeaderSerializer {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_IDLE = 256;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] COLON_SPACE = { ':', ' ' };
+
+    private static final byte[] DATE = ascii("Date");
+    private static final byte[] CONNECTION = ascii("Connection");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] SET_COOKIE = ascii("Set-Cookie");
+
+    private static final Map<String, byte[]> KNOWN_NAMES = new HashMap<>();
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private static volatile byte[] dateValue;
+    private static volatile long dateSecond = -1;
+
+    static {
+        for (String header : new String[] {
+                "Date", "Connection", "Content-Length", "Content-Type", "Content-Encoding",
+                "ETag", "Last-Modified", "Vary", "Location", "Set-Cookie", "Cache-Control",
+                "Retry-After", "Allow", "Transfer-Encoding", "Server" }) {
+            KNOWN_NAMES.put(header, ascii(header));
+        }
+        for (HttpStatus status : HttpStatus.values()) {
+            STATUS_LINES[status.code] = statusLine(status.code, status.message);
+        }
+        updateDate(System.currentTimeMillis());
+    }
+
+    private HeaderSerializer() {
+    }
+
+    /**
+     * Refreshes the cached {@code Date} value when the wall-clock second has changed.
+     * Called once per event loop iteration.
+     */
+    public static void updateDate(long nowMs) {
+        long second = nowMs / 1000;
+        if (second == dateSecond) {
+            return;
+        }
+        String formatted = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochSecond(second).atOffset(ZoneOffset.UTC));
+        dateValue = ascii(formatted);
+        dateSecond = second;
+    }
+
+    /**
+     * Serializes the head of {@code response}. The returned buffer is flipped for writing
+     * and should be handed back with {@link #release(ByteBuffer)} once sent.
+     */
+    public static ByteBuffer serialize(HttpResponse response, long contentLength) {
+        Map<String, String> headers = response.getHeaders();
+        ByteBuffer out = acquire();
+
+        out = ensure(out, 64);
+        out.put(statusLine(response));
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String value = header.getValue();
+            out = ensure(out, header.getKey().length() + (value == null ? 0 : value.length()) + 4);
+            byte[] known = KNOWN_NAMES.get(header.getKey());
+            if (known != null) {
+                out.put(known);
+            } else {
+                putLatin1(out, header.getKey());
+            }
+            out.put(COLON_SPACE);
+            if (value != null) {
+                putLatin1(out, value);
+            }
+            out.put(CRLF);
+        }
+        for (String cookie : response.getSetCookies()) {
+            out = ensure(out, SET_COOKIE.length + cookie.length() + 4);
+            out.put(SET_COOKIE).put(COLON_SPACE);
+            putLatin1(out, cookie);
+            out.put(CRLF);
+        }
+
+        out = ensure(out, 96);
+        if (response.getHeader("Date") == null) {
+            out.put(DATE).put(COLON_SPACE).put(dateValue).put(CRLF);
+        }
+        if (response.getHeader("Connection") == null) {
+            out.put(CONNECTION).put(COLON_SPACE).put(CLOSE).put(CRLF);
+        }
+        if (response.getHeader("Content-Length") == null && contentLength >= 0) {
+            out.put(CONTENT_LENGTH).put(COLON_SPACE);
+            putDecimal(out, contentLength);
+            out.put(CRLF);
+        }
+        out.put(CRLF);
+        return out.flip();
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        buffer.clear();
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Grows into an unpooled buffer when unusually large headers do not fit.
+     */
+    private static ByteBuffer ensure(ByteBuffer out, int needed) {
+        if (out.remaining() >= needed) {
+            return out;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+        out.flip();
+        larger.put(out);
+        release(out);
+        return larger;
+    }
+
+    private static byte[] statusLine(HttpResponse response) {
+        int code = response.getStatusCode();
+        String message = response.getStatusMessage();
+        byte[] cached = code >= 0 && code < STATUS_LINES.length ? STATUS_LINES[code] : null;
+
+        if (cached != null && (message == null || message.isEmpty()
+                || message.equals(HttpStatus.fromCode(code).message))) {
+            return cached;
+        }
+        return statusLine(code, message == null || message.isEmpty() ? "OK" : message);
+    }
+
+    private static byte[] statusLine(int code, String message) {
+        return ascii("HTTP/1.1 " + code + " " + message + "\r\n");
+    }
+
+    private static void putLatin1(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            out.put(c <= 0xFF ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static void putDecimal(ByteBuffer out, long value) {
+        if (value == 0) {
+            out.put((byte) '0');
+            return;
+        }
+        int start = out.position();
+        while (value > 0) {
+            out.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // Digits were written least significant first
+        for (int i = start, j = out.position() - 1; i < j; i++, j--) {
+            byte tmp = out.get(i);
+            out.put(i, out.get(j));
+            out.put(j, tmp);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
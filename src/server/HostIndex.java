@@ -0,0 +1,125 @@
+package server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import config.model.WebServerConfig.ServerBlock;
+
+/**
+ * Immutable, case-insensitive lookup of the server block for a Host header on one port.
+ *
+ * Exact names are answered from a hash map. Wildcard names are kept in a trie of
+ * reversed labels ({@code com -> example}) and the most specific match wins:
+ * {@code *.example.com} matches any subdomain of example.com, and {@code .example.com}
+ * matches example.com itself as well. Exact names always take precedence over wildcards.
+ */
+final class HostIndex {
+
+    private final Map<String, ServerBlock> exact;
+    private final Label wildcards;
+    private final ServerBlock defaultServer;
+
+    private HostIndex(Map<String, ServerBlock> exact, Label wildcards, ServerBlock defaultServer) {
+        this.exact = exact;
+        this.wildcards = wildcards;
+        this.defaultServer = defaultServer;
+    }
+
+    static HostIndex build(List<ServerBlock> servers, ServerBlock defaultServer) {
+        Map<String, ServerBlock> exact = new HashMap<>();
+        Label wildcards = new Label();
+
+        for (ServerBlock block : servers) {
+            if (block.getServerNames() == null) continue;
+            for (String rawName : block.getServerNames()) {
+                if (rawName == null || rawName.isEmpty()) continue;
+                String name = normalize(rawName);
+
+                if (name.startsWith("*.")) {
+                    wildcards.insert(name.substring(2), block, false);
+                } else if (name.startsWith(".")) {
+                    wildcards.insert(name.substring(1), block, true);
+                } else {
+                    // First block listing a name keeps it, as with the previous scan
+                    exact.putIfAbsent(name, block);
+                }
+            }
+        }
+        return new HostIndex(Map.copyOf(exact), wildcards, defaultServer);
+    }
+
+    ServerBlock select(String hostHeader) {
+        if (hostHeader == null || hostHeader.isEmpty()) {
+            return defaultServer;
+        }
+
+        String host = normalize(stripPort(hostHeader));
+        ServerBlock block = exact.get(host);
+        if (block != null) {
+            return block;
+        }
+        block = wildcards.match(host);
+        return block != null ? block : defaultServer;
+    }
+
+    private static String stripPort(String hostHeader) {
+        if (hostHeader.startsWith("[")) {
+            // IPv6 literal, e.g. [::1]:8080
+            int close = hostHeader.indexOf(']');
+            return close > 0 ? hostHeader.substring(0, close + 1) : hostHeader;
+        }
+        int colon = hostHeader.indexOf(':');
+        return colon > 0 ? hostHeader.substring(0, colon) : hostHeader;
+    }
+
+    private static String normalize(String name) {
+        String lower = name.trim().toLowerCase(Locale.ROOT);
+        return lower.endsWith(".") && lower.length() > 1 ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    private static final class Label {
+        private final Map<String, Label> children = new HashMap<>(4);
+        // Matches strict subdomains of this node's name
+        private ServerBlock subdomains;
+        // Matches this node's name itself (from a ".example.com" entry)
+        private ServerBlock self;
+
+        void insert(String domain, ServerBlock block, boolean includeSelf) {
+            Label node = this;
+            int end = domain.length();
+            while (end > 0) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                node = node.children.computeIfAbsent(domain.substring(dot + 1, end), k -> new Label());
+                end = dot;
+            }
+            if (node.subdomains == null) node.subdomains = block;
+            if (includeSelf && node.self == null) node.self = block;
+        }
+
+        /**
+         * Walks the host's labels from the right and keeps the deepest wildcard that covers it.
+         */
+        ServerBlock match(String host) {
+            Label node = this;
+            ServerBlock best = null;
+            int end = host.length();
+            while (end > 0) {
+                int dot = host.lastIndexOf('.', end - 1);
+                node = node.children.get(host.substring(dot + 1, end));
+                if (node == null) {
+                    break;
+                }
+                if (dot < 0) {
+                    // Consumed every label: only an entry for the name itself applies
+                    if (node.self != null) best = node.self;
+                    break;
+                }
+                if (node.subdomains != null) best = node.subdomains;
+                end = dot;
+            }
+            return best;
+        }
+    }
+}
@@ -3,65 +3,242 @@ package server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
 
 import http.model.HttpResponse;
-import http.model.HttpStatus;
+import http.model.ResponseBody;
+import http.model.ResponseBody.FileRegion;
+import util.Metrics;
+import util.SonicLogger;
 
+/**
+ * Sends a response as separate header and body buffers with a single gathering write,
+ * so the body is never copied into a combined buffer. Buffer positions carry partial
+ * progress across OP_WRITE events; headers come from {@link HeaderSerializer}.
+ *
+ * Streaming bodies are pulled into a staging buffer only after the previous bytes have
+ * been written, so a slow client throttles the source. Bodies of unknown length are
+ * framed with chunked transfer encoding (or delimited by the close for HTTP/1.0).
+ * Heap bytes held per connection are therefore bounded by the staging buffer, or by the
+ * body for responses small enough to be built in memory.
+ */
 public class ResponseWriter {
+    private static final SonicLogger logger = SonicLogger.getLogger(ResponseWriter.class);
+
+    private static final int STAGING_SIZE = 16 * 1024;
+    // Room for up to 8 hex digits plus CRLF in front of each chunk
+    private static final int CHUNK_HEADER_SIZE = 10;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Heap bytes pinned by responses waiting for slow sockets, across all connections
+    private static final AtomicLong bufferedBytes = new AtomicLong();
+
+    static {
+        Metrics.gauge("outbound.bufferedBytes", bufferedBytes::get);
+    }
+
     private final SocketChannel channel;
-    private ByteBuffer writeBuffer;
+    private ByteBuffer[] buffers;
+    private long heldBytes;
+    // Pooled header buffer, returned once fully written
+    private ByteBuffer headers;
+    private long lastWriteBytes;
+
+    // Streaming state
+    private ResponseBody stream;
+    private ByteBuffer staging;
+    private boolean chunked;
+    private boolean streamDone;
+    // The last write stopped because the stream had nothing, not because the socket was full
+    private boolean waitingForSource;
 
     public ResponseWriter(SocketChannel channel) {
         this.channel = channel;
     }
 
     public void prepare(HttpResponse response) {
-        byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+        prepare(response, true);
+    }
 
-        String reason = response.getStatusMessage();
-        if (reason == null || reason.isEmpty()) {
-            HttpStatus statusEnum = resolveStatus(response.getStatusCode());
-            reason = statusEnum != null ? statusEnum.message : "OK";
+    /**
+     * @param chunkedAllowed false for HTTP/1.0 clients, which get close-delimited bodies
+     */
+    public void prepare(HttpResponse response, boolean chunkedAllowed) {
+        reset();
+        if (!response.isStreaming()) {
+            ByteBuffer body = response.getBodyBuffer();
+            headers = HeaderSerializer.serialize(response, body.remaining());
+            buffers = new ByteBuffer[] { headers, body };
+            hold(headers.capacity() + (body.isDirect() ? 0 : body.remaining()));
+            return;
         }
 
-        response.getHeaders().putIfAbsent(
-                "Date",
-                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
-        response.getHeaders().putIfAbsent("Connection", "close");
-        response.getHeaders().putIfAbsent("Content-Length", String.valueOf(body.length));
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/1.1 ").append(response.getStatusCode()).append(" ").append(reason).append("\r\n");
-        response.getHeaders().forEach((k, v) -> sb.append(k).append(": ").append(v).append("\r\n"));
-        sb.append("\r\n");
+        stream = response.getStreamBody();
+        long length = stream.length();
+        chunked = length == ResponseBody.UNKNOWN_LENGTH && chunkedAllowed;
+        if (chunked) {
+            response.removeHeader("Content-Length");
+            response.addHeader("Transfer-Encoding", "chunked");
+        }
+        headers = HeaderSerializer.serialize(response, length);
+        staging = ByteBuffer.allocate(STAGING_SIZE).limit(0);
+        buffers = new ByteBuffer[] { headers, staging };
+        hold(headers.capacity() + STAGING_SIZE);
+    }
 
-        byte[] headers = sb.toString().getBytes();
-        writeBuffer = ByteBuffer.allocate(headers.length + body.length);
-        writeBuffer.put(headers).put(body).flip();
+    private void hold(long bytes) {
+        heldBytes = bytes;
+        bufferedBytes.addAndGet(bytes);
     }
 
+    /**
+     * Writes until everything is sent or the socket send buffer is full.
+     *
+     * @return true once headers and body have been fully written
+     */
     public boolean write() throws IOException {
-        if (writeBuffer == null) {
+        lastWriteBytes = 0;
+        waitingForSource = false;
+        if (buffers == null) {
             return true;
         }
 
-        channel.write(writeBuffer);
-        return !writeBuffer.hasRemaining();
+        while (true) {
+            long written = channel.write(buffers);
+            lastWriteBytes += written;
+            if (!isDrained()) {
+                if (written == 0) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (stream == null || streamDone) {
+                reset();
+                return true;
+            }
+
+            if (!chunked && stream instanceof FileRegion region) {
+                long sent = region.transferTo(channel);
+                lastWriteBytes += sent;
+                if (region.isDone()) {
+                    streamDone = true;
+                } else if (sent == 0) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (!fillStaging()) {
+                // Source has nothing yet; see notifyWhenReadable
+                waitingForSource = true;
+                return false;
+            }
+        }
     }
 
-    public void reset() {
-        writeBuffer = null;
+    /**
+     * Pulls the next piece of the stream into the staging buffer, framed as a chunk when
+     * needed. Returns false if the source had nothing available.
+     */
+    private boolean fillStaging() throws IOException {
+        staging.clear();
+        if (chunked) {
+            staging.position(CHUNK_HEADER_SIZE).limit(staging.capacity() - 2);
+        }
+
+        int n = stream.read(staging);
+        if (n < 0) {
+            streamDone = true;
+            staging.clear();
+            if (chunked) {
+                staging.put(LAST_CHUNK);
+            }
+            staging.flip();
+            return true;
+        }
+        if (n == 0) {
+            staging.clear().limit(0);
+            return false;
+        }
+
+        if (!chunked) {
+            staging.flip();
+            return true;
+        }
+
+        int end = staging.position();
+        byte[] size = Integer.toHexString(end - CHUNK_HEADER_SIZE).getBytes(StandardCharsets.ISO_8859_1);
+        int start = CHUNK_HEADER_SIZE - size.length - 2;
+        staging.limit(staging.capacity());
+        staging.put(start, size);
+        staging.put(start + size.length, (byte) '\r');
+        staging.put(start + size.length + 1, (byte) '\n');
+        staging.put(end, (byte) '\r');
+        staging.put(end + 1, (byte) '\n');
+        staging.position(start).limit(end + 2);
+        return true;
     }
 
-    private HttpStatus resolveStatus(int code) {
-        for (HttpStatus status : HttpStatus.values()) {
-            if (status.code == code) {
-                return status;
+    private boolean isDrained() {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return false;
             }
         }
-        return null;
+        return true;
+    }
+
+    /**
+     * True when the last {@link #write()} stopped because the streaming body had no bytes
+     * ready. The socket is writable, so waiting for OP_WRITE would spin.
+     */
+    public boolean isWaitingForSource() {
+        return waitingForSource;
+    }
+
+    /**
+     * Runs {@code callback}, possibly on another thread, once the body has more to send.
+     */
+    public void notifyWhenReadable(Runnable callback) {
+        if (stream == null) {
+            callback.run();
+            return;
+        }
+        stream.notifyWhenReadable(callback);
+    }
+
+    public boolean isPrepared() {
+        return buffers != null;
+    }
+
+    public long getLastWriteBytes() {
+        return lastWriteBytes;
+    }
+
+    public void reset() {
+        bufferedBytes.addAndGet(-heldBytes);
+        heldBytes = 0;
+        releaseHeaders();
+        buffers = null;
+        staging = null;
+        streamDone = false;
+        waitingForSource = false;
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                logger.error("Error closing response body", e);
+            }
+            stream = null;
+        }
+    }
+
+    private void releaseHeaders() {
+        if (headers != null) {
+            HeaderSerializer.release(headers);
+            headers = null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,16 +1,28 @@
 package server;
 
+import cache.DocRootIndex;
 import config.model.WebServerConfig;
 import config.model.WebServerConfig.ListenAddress;
 import config.model.WebServerConfig.ServerBlock;
+import handlers.CgiLimiter;
+import handlers.CgiScripts;
+import handlers.CgiWorkerPool;
+import handlers.ErrorHandler;
+import handlers.HandlerRegistry;
+import handlers.UpstreamGroup;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import routing.Router;
+import routing.model.Route;
 import util.SonicLogger;
 
 public class Server {
@@ -18,7 +30,10 @@ public class Server {
     private static final SonicLogger logger = SonicLogger.getLogger(Server.class);
 
     private final WebServerConfig config;
-    private final Map<Integer, PortContext> portContexts = new HashMap<>();
+    // Keyed by ListenAddress.key(): the port, or the socket path of a Unix listener
+    private final Map<String, PortContext> portContexts = new HashMap<>();
+    // Stateless and shared by every connection on every port
+    private final Router router = new Router();
 
     private Selector selector;
 
@@ -30,6 +45,14 @@ public class Server {
         try {
             selector = Selector.open();
             registerShutdownHook();
+            if (config.isDocRootIndex()) {
+                DocRootIndex.build(collectDocRoots());
+            }
+            ErrorHandler.getInstance().preload(config.getServers());
+            CgiLimiter.configure(config.getCgiLimits());
+            CgiScripts.prepare(config.getServers());
+            CgiWorkerPool.prestart(config.getServers());
+            HandlerRegistry.getInstance().load(config.getHandlersDir(), config.getServers());
             bindAllServers();
 
             logger.success("Server started with " + portContexts.size() + " listener(s)");
@@ -44,11 +67,28 @@ public class Server {
         }
     }
 
+    private List<String> collectDocRoots() {
+        List<String> roots = new ArrayList<>();
+        for (ServerBlock serverBlock : config.getServers()) {
+            roots.add(serverBlock.getRoot());
+            if (serverBlock.getRoutes() == null) continue;
+            for (Route route : serverBlock.getRoutes()) {
+                if (route.getRoot() != null) {
+                    roots.add(route.getRoot());
+                }
+            }
+        }
+        return roots;
+    }
+
     private void bindAllServers() throws IOException {
         try {
             for (ServerBlock serverBlock : config.getServers()) {
                 bindSingleServer(serverBlock.getListen(), serverBlock);
             }
+            for (PortContext ctx : portContexts.values()) {
+                ctx.buildHostIndex();
+            }
         } catch (IOException e) {
             closeAllChannels();
             throw e;
@@ -57,7 +97,7 @@ public class Server {
 
     private void bindSingleServer(ListenAddress addr, ServerBlock serverBlock) throws IOException {
 
-        PortContext ctx = portContexts.get(addr.getPort());
+        PortContext ctx = portContexts.get(addr.key());
         if (ctx != null) {
             ctx.addServer(serverBlock);
             return;
@@ -66,31 +106,41 @@ public class Server {
         ServerSocketChannel channel = null;
 
         try {
-            channel = ServerSocketChannel.open(); // ktft7 TCP server socket
-            channel.configureBlocking(false);
-            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-
-            channel.bind(new InetSocketAddress(addr.getHost(), addr.getPort()));
+            Path socketPath = null;
+            if (addr.isUnix()) {
+                socketPath = Path.of(addr.getUnixPath());
+                channel = UnixListener.bind(socketPath, addr.getMode());
+            } else {
+                channel = ServerSocketChannel.open(); // ktft7 TCP server socket
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+
+                channel.bind(new InetSocketAddress(addr.getHost(), addr.getPort()));
+            }
 
-            ctx = new PortContext(channel, addr.getPort());
+            ctx = new PortContext(channel, socketPath, router);
             ctx.addServer(serverBlock);
 
             channel.register(selector, SelectionKey.OP_ACCEPT, ctx);
-            portContexts.put(addr.getPort(), ctx);
+            portContexts.put(addr.key(), ctx);
 
-            String url = "http://" + addr.getHost() + ":" + addr.getPort();
+            String url = addr.isUnix() ? addr.key() : "http://" + addr.getHost() + ":" + addr.getPort();
             String coloredUrl = "\u001B[38;5;51m" + url + "\u001B[38;5;51m";
             logger.success("Listening on " + coloredUrl);
 
         } catch (IOException e) {
-            logger.error("Failed to bind " + addr.getHost() + ":" + addr.getPort(), e);
+            logger.error("Failed to bind " + describe(addr), e);
             if (channel != null) {
                 safeClose(channel);
             }
-            throw new IOException("Cannot bind to " + addr.getHost() + ":" + addr.getPort(), e);
+            throw new IOException("Cannot bind to " + describe(addr), e);
         }
     }
 
+    private static String describe(ListenAddress addr) {
+        return addr.isUnix() ? addr.key() : addr.getHost() + ":" + addr.getPort();
+    }
+
     private void registerShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.err.println();
@@ -102,6 +152,13 @@ public class Server {
     public void shutdown() {
         logger.info("Shutting down server...");
 
+        // The JVM may exit before the event loop gets to cleanup, so do not leave socket files behind
+        for (PortContext ctx : portContexts.values()) {
+            if (ctx.socketPath != null) {
+                UnixListener.unlink(ctx.socketPath);
+            }
+        }
+
         if (selector != null && selector.isOpen()) {
             selector.wakeup();
         }
@@ -112,20 +169,31 @@ public class Server {
 
         closeAllChannels();
         closeSelector();
+        CgiWorkerPool.shutdownAll();
+        CgiScripts.shutdown();
+        UpstreamGroup.closeAll();
+        HandlerRegistry.getInstance().destroyAll();
+        if (DocRootIndex.getActive() != null) {
+            DocRootIndex.getActive().close();
+        }
 
         logger.success("Server stopped");
     }
 
     private void closeAllChannels() {
-        for (Map.Entry<Integer, PortContext> entry : portContexts.entrySet()) {
+        for (Map.Entry<String, PortContext> entry : portContexts.entrySet()) {
+            PortContext ctx = entry.getValue();
             try {
-                ServerSocketChannel channel = entry.getValue().channel;
+                ServerSocketChannel channel = ctx.channel;
                 if (channel.isOpen()) {
-                    logger.info("Closing port " + entry.getKey());
+                    logger.info("Closing listener " + entry.getKey());
                     channel.close();
                 }
             } catch (IOException e) {
-                logger.error("Error closing port " + entry.getKey(), e);
+                logger.error("Error closing listener " + entry.getKey(), e);
+            }
+            if (ctx.socketPath != null) {
+                UnixListener.unlink(ctx.socketPath);
             }
         }
         portContexts.clear();
@@ -153,11 +221,25 @@ public class Server {
 
     public static class PortContext {
         private final ServerSocketChannel channel;
+        // Socket file of a Unix listener, removed on shutdown; null for TCP
+        private final Path socketPath;
+        private final Router router;
         private final java.util.List<ServerBlock> servers = new java.util.ArrayList<>();
         private ServerBlock defaultServer;
+        private volatile HostIndex hostIndex;
 
-        public PortContext(ServerSocketChannel channel, int port) {
+        public PortContext(ServerSocketChannel channel, Path socketPath, Router router) {
             this.channel = channel;
+            this.socketPath = socketPath;
+            this.router = router;
+        }
+
+        public boolean isUnix() {
+            return socketPath != null;
+        }
+
+        public Router getRouter() {
+            return router;
         }
 
         public void addServer(ServerBlock serverBlock) {
@@ -165,30 +247,27 @@ public class Server {
             if (defaultServer == null || (serverBlock.getListen() != null && serverBlock.getListen().isDefault())) {
                 defaultServer = serverBlock;
             }
+            hostIndex = null;
         }
 
         public ServerBlock getDefaultServer() {
             return defaultServer != null ? defaultServer : (servers.isEmpty() ? null : servers.get(0));
         }
 
-        public ServerBlock selectServer(String hostHeader) {
-            if (servers.isEmpty()) return null;
-            if (hostHeader == null || hostHeader.isEmpty()) {
-                return getDefaultServer();
-            }
-
-            String hostOnly = hostHeader;
-            int colon = hostHeader.indexOf(':');
-            if (colon > 0) {
-                hostOnly = hostHeader.substring(0, colon);
-            }
+        /**
+         * Builds the host lookup once all server blocks for this port are added.
+         */
+        public void buildHostIndex() {
+            hostIndex = HostIndex.build(servers, getDefaultServer());
+        }
 
-            for (ServerBlock block : servers) {
-                if (block.getServerNames() != null && block.getServerNames().contains(hostOnly)) {
-                    return block;
-                }
+        public ServerBlock selectServer(String hostHeader) {
+            HostIndex index = hostIndex;
+            if (index == null) {
+                buildHostIndex();
+                index = hostIndex;
             }
-            return getDefaultServer();
+            return index.select(hostHeader);
         }
     }
 }
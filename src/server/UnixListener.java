@@ -0,0 +1,102 @@
+package server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
+import util.SonicLogger;
+
+/**
+ * Binds Unix domain socket listeners. A socket file left behind by a server that did not
+ * shut down cleanly is removed first; one that still accepts connections, or a path that
+ * is not a socket at all, is left alone and the bind fails.
+ */
+final class UnixListener {
+
+    private static final SonicLogger logger = SonicLogger.getLogger(UnixListener.class);
+
+    // Owner, group, others; read, write, execute; highest bit first
+    private static final PosixFilePermission[] PERMISSION_BITS = {
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+        PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+        PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE,
+    };
+
+    private UnixListener() {
+    }
+
+    /**
+     * Opens a non-blocking listener on {@code path}, applying the octal {@code mode} to the
+     * socket file when one is given.
+     */
+    static ServerSocketChannel bind(Path path, String mode) throws IOException {
+        clearStale(path);
+
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.configureBlocking(false);
+            channel.bind(UnixDomainSocketAddress.of(path));
+            if (mode != null) {
+                Files.setPosixFilePermissions(path, permissions(mode));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Removes the socket file once its listener is closed.
+     */
+    static void unlink(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Cannot remove socket file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void clearStale(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        // Sockets are neither files, directories nor links
+        if (!attrs.isOther()) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probe.connect(UnixDomainSocketAddress.of(path));
+        } catch (ConnectException e) {
+            // Nobody is listening: left over from an earlier run
+            Files.delete(path);
+            logger.info("Removed stale socket file " + path);
+            return;
+        }
+        throw new IOException(path + " is in use by another process");
+    }
+
+    private static Set<PosixFilePermission> permissions(String mode) {
+        int bits = Integer.parseInt(mode, 8);
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (int i = 0; i < PERMISSION_BITS.length; i++) {
+            if ((bits & (1 << (PERMISSION_BITS.length - 1 - i))) != 0) {
+                permissions.add(PERMISSION_BITS[i]);
+            }
+        }
+        return permissions;
+    }
+}
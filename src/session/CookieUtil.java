@@ -1,7 +1,9 @@
 package session;
 
+import http.model.HttpRequest;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.Map;
 
 public class CookieUtil {
 
@@ -18,4 +20,16 @@ public class CookieUtil {
         // Minimal, server-wide session cookie
         return SESSION_COOKIE + "=" + sessionId + "; Path=/; HttpOnly";
     }
+
+    /**
+     * True when the request carries cookies besides the server's own session cookie, which
+     * every browser has after its first response. A Cookie header that did not parse counts.
+     */
+    public static boolean hasClientCookies(HttpRequest request) {
+        if (request.getHeader("Cookie") == null) {
+            return false;
+        }
+        Map<String, String> cookies = request.getCookies();
+        return cookies.size() != 1 || !cookies.containsKey(SESSION_COOKIE);
+    }
 }
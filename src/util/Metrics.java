@@ -0,0 +1,43 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of named counters and gauges, periodically logged by the event loop.
+ */
+public final class Metrics {
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<?>> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public static void gauge(String name, Supplier<?> supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        GAUGES.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+        return snapshot;
+    }
+
+    public static String format() {
+        StringBuilder sb = new StringBuilder();
+        snapshot().forEach((name, value) -> {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(name).append('=').append(value);
+        });
+        return sb.toString();
+    }
+}